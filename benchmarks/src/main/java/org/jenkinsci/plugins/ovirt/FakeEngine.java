@@ -0,0 +1,566 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FakeEngine is a stand-in for an ovirt engine, serving the parts of the
+ * REST api this plugin uses from memory, so that the plugin can be load
+ * tested without a real engine:
+ *
+ * - /api, the entry point, which also opens sessions
+ * - /api/vms, with searches, and the start, shutdown and stop actions
+ * - /api/vms/{id}/snapshots, with the restore action
+ * - /api/vms/{id}/disks
+ * - /api/clusters and /api/templates
+ *
+ * The vms go through the states a real engine shows, e.g a started vm is
+ * 'wait_for_launch', then 'powering_up' and finally 'up', taking as long
+ * as set. Every request can be slowed down by 'latencyMillis', and a
+ * fraction of them can be failed with a 503.
+ */
+public class FakeEngine {
+
+    private static final Pattern VM_PATH = Pattern.compile(
+            "/api/vms/([^/]+)(?:/(start|shutdown|stop|disks|snapshots)"
+            + "(?:/([^/]+)(?:/(restore))?)?)?/?");
+
+    private static final Pattern NAME_ELEMENT =
+            Pattern.compile("<name>([^<]*)</name>");
+
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private static final String CLUSTER_ID =
+            "00000000-0000-0000-0000-00000000c1c1";
+    private static final String CLUSTER_NAME = "Default";
+    private static final String TEMPLATE_ID =
+            "00000000-0000-0000-0000-00000000f00d";
+    private static final String TEMPLATE_NAME = "fake-template";
+
+    /**
+     * A state the vm gets into at some point
+     */
+    private static final class Transition {
+        private final String state;
+        private final long at;
+
+        private Transition(String state, long at) {
+            this.state = state;
+            this.at = at;
+        }
+    }
+
+    /**
+     * A vm of the engine
+     */
+    private static final class FakeVM {
+        private final String id = UUID.randomUUID().toString();
+        private final String name;
+        private final String storageDomainId;
+        private final int index;
+        private final Map<String, String> snapshots =
+                new LinkedHashMap<String, String>();
+        private String state;
+        private final LinkedList<Transition> pending =
+                new LinkedList<Transition>();
+
+        private FakeVM(String name, String state, String storageDomainId,
+                       int index) {
+            this.name = name;
+            this.state = state;
+            this.storageDomainId = storageDomainId;
+            this.index = index;
+        }
+
+        /**
+         * @return the state at that time, once the due transitions are done
+         */
+        private String stateAt(long now) {
+            while (!pending.isEmpty() && pending.getFirst().at <= now) {
+                state = pending.removeFirst().state;
+            }
+            return state;
+        }
+
+        /**
+         * Go through those states, the last one 'millis' from now, the ones
+         * before evenly spread over that time.
+         */
+        private void moveTo(long now, long millis, String... states) {
+            pending.clear();
+            state = states[0];
+            for (int i = 1; i < states.length; i++) {
+                pending.add(new Transition(states[i],
+                        now + millis * i / (states.length - 1)));
+            }
+        }
+
+        private String href() {
+            return "/api/vms/" + id;
+        }
+    }
+
+    private final Map<String, FakeVM> vms = new LinkedHashMap<String, FakeVM>();
+    private final Random random = new Random();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double failureRate = 0;
+    private volatile long shutdownMillis = 2000;
+    private volatile long unlockMillis = 3000;
+    private volatile long bootMillis = 5000;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Start serving on a free port of the loopback interface.
+     *
+     * @throws IOException the server could not be started
+     */
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/api", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the api url to configure the hypervisor with
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    /**
+     * @return the name of the only cluster of the engine
+     */
+    public String getClusterName() {
+        return CLUSTER_NAME;
+    }
+
+    /**
+     * @return the name of the only template of the engine
+     */
+    public String getTemplateName() {
+        return TEMPLATE_NAME;
+    }
+
+    /**
+     * Add a vm, with its disk on a storage domain and some snapshots.
+     *
+     * @param name the vm name
+     * @param state the state of the vm, e.g 'up'
+     * @param storageDomainId the storage domain of its disk
+     * @param snapshotDescriptions the descriptions of its snapshots
+     */
+    public synchronized void addVM(String name, String state,
+                                   String storageDomainId,
+                                   String... snapshotDescriptions) {
+        FakeVM vm = new FakeVM(name, state, storageDomainId, vms.size());
+        for (String description : snapshotDescriptions) {
+            vm.snapshots.put(UUID.randomUUID().toString(), description);
+        }
+        vms.put(vm.id, vm);
+    }
+
+    /**
+     * @param vmName the vm name
+     * @return the current state of the vm, or null if there is no such vm
+     */
+    public synchronized String getState(String vmName) {
+        FakeVM vm = byName(vmName);
+        return vm == null ? null : vm.stateAt(System.currentTimeMillis());
+    }
+
+    /**
+     * @param latencyMillis how long every request takes at least
+     * @param jitterMillis how much longer, at random, it may take
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param failureRate the fraction of the requests, between 0 and 1,
+     * failed with a 503. The entry point is never failed, so that sessions
+     * can be opened.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param shutdownMillis how long a vm is 'powering_down'
+     * @param unlockMillis how long a vm is 'image_locked' when restored or
+     * created
+     * @param bootMillis how long a vm takes to be 'up', through
+     * 'wait_for_launch' and 'powering_up'
+     */
+    public void setTransitionTimes(long shutdownMillis, long unlockMillis,
+                                   long bootMillis) {
+        this.shutdownMillis = shutdownMillis;
+        this.unlockMillis = unlockMillis;
+        this.bootMillis = bootMillis;
+    }
+
+    /**
+     * @return how many requests were served
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return how many requests were failed on purpose
+     */
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(
+                exchange.getRequestURI().getRawQuery());
+        String body = readBody(exchange.getRequestBody());
+
+        try {
+            delay();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        boolean entryPoint = path.equals("/api") || path.equals("/api/");
+        if (!entryPoint && shouldFail()) {
+            injectedFailures.incrementAndGet();
+            reply(exchange, 503, fault("Service Unavailable",
+                                       "Injected failure"));
+            return;
+        }
+
+        if (entryPoint) {
+            exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE
+                    + "=" + UUID.randomUUID() + "; Path=/api");
+            reply(exchange, 200, "<api>"
+                    + "<link href=\"/api/vms\" rel=\"vms\"/>"
+                    + "<link href=\"/api/clusters\" rel=\"clusters\"/>"
+                    + "<link href=\"/api/templates\" rel=\"templates\"/>"
+                    + "<product_info><name>Fake Engine</name>"
+                    + "<version major=\"3\" minor=\"4\" build=\"0\""
+                    + " revision=\"0\"/></product_info>"
+                    + "</api>");
+        } else if (path.matches("/api/vms/?")) {
+            if (method.equals("POST")) {
+                reply(exchange, 201, createVM(body));
+            } else {
+                reply(exchange, 200, listVMs(query.get("search")));
+            }
+        } else if (path.matches("/api/clusters/?")) {
+            reply(exchange, 200, "<clusters>" + clusterXml() + "</clusters>");
+        } else if (path.equals("/api/clusters/" + CLUSTER_ID)) {
+            reply(exchange, 200, clusterXml());
+        } else if (path.matches("/api/templates/?")) {
+            reply(exchange, 200, "<templates>" + templateXml()
+                                 + "</templates>");
+        } else if (path.equals("/api/templates/" + TEMPLATE_ID)) {
+            reply(exchange, 200, templateXml());
+        } else {
+            Matcher m = VM_PATH.matcher(path);
+            if (m.matches()) {
+                serveVM(exchange, method, m.group(1), m.group(2), m.group(3),
+                        m.group(4));
+            } else {
+                reply(exchange, 404, fault("Not Found", path));
+            }
+        }
+    }
+
+    private void serveVM(HttpExchange exchange, String method, String vmId,
+                         String sub, String snapshotId, String snapshotAction)
+                                                        throws IOException {
+        int code = 200;
+        String xml;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            FakeVM vm = vms.get(vmId);
+            if (vm == null) {
+                reply(exchange, 404, fault("Not Found", "VM " + vmId));
+                return;
+            }
+            String state = vm.stateAt(now);
+
+            if (sub == null && method.equals("DELETE")) {
+                vms.remove(vmId);
+                xml = actionXml();
+            } else if (sub == null) {
+                xml = vmXml(vm, now);
+            } else if (sub.equals("start")) {
+                if (!state.equals("down")) {
+                    code = 409;
+                    xml = fault("Operation Failed", "VM is " + state);
+                } else {
+                    vm.moveTo(now, bootMillis, "wait_for_launch",
+                              "powering_up", "up");
+                    xml = actionXml();
+                }
+            } else if (sub.equals("shutdown")) {
+                if (!state.equals("down")) {
+                    vm.moveTo(now, shutdownMillis, "powering_down", "down");
+                }
+                xml = actionXml();
+            } else if (sub.equals("stop")) {
+                vm.moveTo(now, 0, "down");
+                xml = actionXml();
+            } else if (sub.equals("disks")) {
+                xml = "<disks><disk id=\"" + vm.id + "-disk\" href=\""
+                        + vm.href() + "/disks/" + vm.id + "-disk\">"
+                        + "<name>" + vm.name + "_Disk1</name>"
+                        + "<storage_domains><storage_domain id=\""
+                        + vm.storageDomainId + "\"/></storage_domains>"
+                        + "</disk></disks>";
+            } else if (snapshotId == null) {
+                StringBuilder list = new StringBuilder("<snapshots>");
+                for (String id : vm.snapshots.keySet()) {
+                    list.append(snapshotXml(vm, id));
+                }
+                xml = list.append("</snapshots>").toString();
+            } else if (!vm.snapshots.containsKey(snapshotId)) {
+                code = 404;
+                xml = fault("Not Found", "Snapshot " + snapshotId);
+            } else if (snapshotAction == null) {
+                xml = snapshotXml(vm, snapshotId);
+            } else if (!state.equals("down")) {
+                code = 409;
+                xml = fault("Operation Failed", "VM is " + state);
+            } else {
+                vm.moveTo(now, unlockMillis, "image_locked", "down");
+                xml = actionXml();
+            }
+        }
+        reply(exchange, code, xml);
+    }
+
+    private synchronized String listVMs(String search) {
+        long now = System.currentTimeMillis();
+        StringBuilder xml = new StringBuilder("<vms>");
+        for (FakeVM vm : vms.values()) {
+            if (search == null || matches(vm, search)) {
+                xml.append(vmXml(vm, now));
+            }
+        }
+        return xml.append("</vms>").toString();
+    }
+
+    private synchronized String createVM(String body) {
+        Matcher m = NAME_ELEMENT.matcher(body);
+        String name = m.find() ? m.group(1) : "vm-" + vms.size();
+        FakeVM vm = new FakeVM(name, "image_locked", "fake-domain-0",
+                               vms.size());
+        long now = System.currentTimeMillis();
+        vm.moveTo(now, unlockMillis, "image_locked", "down");
+        vms.put(vm.id, vm);
+        return vmXml(vm, now);
+    }
+
+    /**
+     * Searches are like 'name=a or name=b', 'name=a and cluster=c' or
+     * 'cluster=c'
+     */
+    private static boolean matches(FakeVM vm, String search) {
+        for (String alternative : search.split("(?i)\\s+or\\s+")) {
+            boolean all = true;
+            for (String clause : alternative.split("(?i)\\s+and\\s+")) {
+                String[] kv = clause.trim().split("=", 2);
+                if (kv.length != 2) {
+                    continue;
+                }
+                String key = kv[0].trim().toLowerCase();
+                String value = kv[1].trim();
+                if (key.equals("name") && !value.equals(vm.name)
+                        || key.equals("cluster")
+                           && !value.equals(CLUSTER_NAME)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FakeVM byName(String name) {
+        for (FakeVM vm : vms.values()) {
+            if (vm.name.equals(name)) {
+                return vm;
+            }
+        }
+        return null;
+    }
+
+    private static String vmXml(FakeVM vm, long now) {
+        String state = vm.stateAt(now);
+        StringBuilder xml = new StringBuilder();
+        xml.append("<vm id=\"").append(vm.id).append("\" href=\"")
+           .append(vm.href()).append("\">")
+           .append("<name>").append(vm.name).append("</name>")
+           .append("<link href=\"").append(vm.href())
+           .append("/snapshots\" rel=\"snapshots\"/>")
+           .append("<link href=\"").append(vm.href())
+           .append("/disks\" rel=\"disks\"/>")
+           .append("<status><state>").append(state)
+           .append("</state></status>")
+           .append("<cluster id=\"").append(CLUSTER_ID)
+           .append("\" href=\"/api/clusters/").append(CLUSTER_ID)
+           .append("\"/>")
+           .append("<template id=\"").append(TEMPLATE_ID)
+           .append("\" href=\"/api/templates/").append(TEMPLATE_ID)
+           .append("\"/>")
+           .append("<stateless>false</stateless>");
+        if (state.equals("up")) {
+            xml.append("<guest_info><ips><ip address=\"10.")
+               .append((vm.index >> 16) & 0xff).append('.')
+               .append((vm.index >> 8) & 0xff).append('.')
+               .append(vm.index & 0xff).append("\"/></ips></guest_info>");
+        }
+        return xml.append("</vm>").toString();
+    }
+
+    private static String snapshotXml(FakeVM vm, String snapshotId) {
+        Calendar date = Calendar.getInstance();
+        // a stable date per snapshot, as the snapshot index checks it
+        date.setTimeInMillis(Math.abs((long) snapshotId.hashCode()) * 1000L);
+        return "<snapshot id=\"" + snapshotId + "\" href=\"" + vm.href()
+                + "/snapshots/" + snapshotId + "\">"
+                + "<description>" + vm.snapshots.get(snapshotId)
+                + "</description>"
+                + "<vm id=\"" + vm.id + "\" href=\"" + vm.href() + "\"/>"
+                + "<date>" + DatatypeConverter.printDateTime(date) + "</date>"
+                + "<snapshot_status>ok</snapshot_status>"
+                + "</snapshot>";
+    }
+
+    private static String clusterXml() {
+        return "<cluster id=\"" + CLUSTER_ID + "\" href=\"/api/clusters/"
+                + CLUSTER_ID + "\"><name>" + CLUSTER_NAME + "</name></cluster>";
+    }
+
+    private static String templateXml() {
+        return "<template id=\"" + TEMPLATE_ID + "\" href=\"/api/templates/"
+                + TEMPLATE_ID + "\"><name>" + TEMPLATE_NAME + "</name>"
+                + "<cluster id=\"" + CLUSTER_ID + "\" href=\"/api/clusters/"
+                + CLUSTER_ID + "\"/></template>";
+    }
+
+    private static String actionXml() {
+        return "<action><status><state>complete</state></status></action>";
+    }
+
+    private static String fault(String reason, String detail) {
+        return "<fault><reason>" + reason + "</reason><detail>" + detail
+                + "</detail></fault>";
+    }
+
+    private void delay() throws InterruptedException {
+        long millis = latencyMillis;
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                millis += (long) (random.nextDouble() * jitterMillis);
+            }
+        }
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private boolean shouldFail() {
+        if (failureRate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < failureRate;
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int code, String xml)
+                                                        throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml)
+                .getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, n);
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery)
+                                        throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            String[] kv = pair.split("=", 2);
+            params.put(URLDecoder.decode(kv[0], "UTF-8"),
+                       kv.length == 2 ? URLDecoder.decode(kv[1], "UTF-8")
+                                      : "");
+        }
+        return params;
+    }
+}
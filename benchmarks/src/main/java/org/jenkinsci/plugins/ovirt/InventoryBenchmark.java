@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.ovirt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ovirt.engine.sdk.decorators.VM;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the vm lookups of OVirtHypervisor take on inventories of
+ * different sizes, the inventory being cached:
+ *
+ * - getVM: one vm by name
+ * - getVMs: all the vms, as the clone and warm pool code does
+ * - peekVMNames: the sorted names, as the UI does
+ * - reload: the inventory expiring and being indexed again
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int vms;
+
+    private SyntheticHypervisor hypervisor;
+
+    @Setup
+    public void setUp() {
+        hypervisor = new SyntheticHypervisor(vms, 0, 3600);
+        // load the inventory once, outside of the measurement
+        hypervisor.getVMs();
+    }
+
+    @Benchmark
+    public VM getVM() {
+        return hypervisor.getVM(
+                "vm-" + ThreadLocalRandom.current().nextInt(vms));
+    }
+
+    @Benchmark
+    public List<VM> getVMs() {
+        return hypervisor.getVMs();
+    }
+
+    @Benchmark
+    public List<String> peekVMNames() {
+        return hypervisor.peekVMNames();
+    }
+
+    @Benchmark
+    public List<VM> reload() {
+        hypervisor.getInventory().invalidate();
+        return hypervisor.getVMs();
+    }
+}
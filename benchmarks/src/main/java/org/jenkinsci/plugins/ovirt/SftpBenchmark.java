@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SFTPv3FileHandle;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.sftp.SftpSubsystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long copying a file over sftp takes, against an ssh server running
+ * in the benchmark itself, so that what is measured is the sftp client:
+ *
+ * - window 1 and more: SFTPPipeline, which SFTPClient uses, with that
+ *   many 32KB requests in flight
+ * - window 0: one request at a time through SFTPv3Client, as SFTPClient
+ *   did before, for comparison
+ *
+ * The throughput is the file size divided by the time reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpBenchmark {
+
+    private static final String USER = "jenkins";
+    private static final int CHUNK_SIZE = 32768;
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"0", "1", "4", "16", "64"})
+    public int window;
+
+    private SshServer sshd;
+    private Connection connection;
+    private SFTPClient sftp;
+    private File dir;
+    private String source;
+    private String target;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = File.createTempFile("sftp-benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        int port = freePort();
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(port);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(
+                new File(dir, "hostkey.ser").getPath()));
+        sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+            public boolean authenticate(String username, String password,
+                                        ServerSession session) {
+                return true;
+            }
+        });
+        sshd.setSubsystemFactories(
+                Collections.<NamedFactory<Command>>singletonList(
+                        new SftpSubsystem.Factory()));
+        sshd.start();
+
+        connection = new Connection("127.0.0.1", port);
+        connection.connect();
+        if (!connection.authenticateWithPassword(USER, USER)) {
+            throw new IOException("Could not log in the benchmark server");
+        }
+        sftp = new SFTPClient(connection);
+
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        File sourceFile = new File(dir, "source.bin");
+        OutputStream out = new FileOutputStream(sourceFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        source = sourceFile.getAbsolutePath();
+        target = new File(dir, "target.bin").getAbsolutePath();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (sftp != null) {
+            sftp.close();
+        }
+        if (connection != null) {
+            connection.close();
+        }
+        if (sshd != null) {
+            sshd.stop(true);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        if (window == 0) {
+            writeUnpipelined();
+            return;
+        }
+        OutputStream out = new SFTPPipeline(connection)
+                .create(target, -1, window);
+        try {
+            for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+                out.write(data, offset, Math.min(CHUNK_SIZE, size - offset));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        if (window == 0) {
+            return readUnpipelined();
+        }
+        InputStream in = new SFTPPipeline(connection).open(source, window);
+        try {
+            return drain(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeUnpipelined() throws IOException {
+        SFTPv3FileHandle handle = sftp.createFile(target);
+        try {
+            for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+                sftp.write(handle, offset, data, offset,
+                           Math.min(CHUNK_SIZE, size - offset));
+            }
+        } finally {
+            sftp.closeFile(handle);
+        }
+    }
+
+    private long readUnpipelined() throws IOException {
+        SFTPv3FileHandle handle = sftp.openFileRO(source);
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long offset = 0;
+            int n;
+            while ((n = sftp.read(handle, offset, buffer, 0,
+                                  buffer.length)) > 0) {
+                offset += n;
+            }
+            return offset;
+        } finally {
+            sftp.closeFile(handle);
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+}
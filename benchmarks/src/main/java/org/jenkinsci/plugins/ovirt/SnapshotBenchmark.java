@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.ovirt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ovirt.engine.sdk.decorators.VMSnapshot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long finding the snapshot a launch reverts to takes, for vms with
+ * more or less snapshots:
+ *
+ * - warm: the SnapshotIndex knows the snapshot and checks it by id
+ * - cold: the SnapshotIndex lists all the snapshots of the vm
+ *
+ * The last snapshot is looked up, which is the worst case when listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int snapshots;
+
+    private SyntheticVM vm;
+    private SnapshotIndex index;
+    private String description;
+
+    @Setup
+    public void setUp() throws Exception {
+        vm = new SyntheticVM(0, "down", snapshots);
+        index = new SnapshotIndex();
+        description = "snapshot-" + (snapshots - 1);
+        index.find(vm, description);
+    }
+
+    @Benchmark
+    public VMSnapshot warm() throws Exception {
+        return index.find(vm, description);
+    }
+
+    @Benchmark
+    public VMSnapshot cold() throws Exception {
+        index.forget(vm.getId());
+        return index.find(vm, description);
+    }
+}
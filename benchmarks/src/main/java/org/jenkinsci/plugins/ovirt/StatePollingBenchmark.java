@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of waiting for vm states through the VMStateWatcher: that
+ * many launchers wait for their vm to be up, which it already is, so what
+ * is measured is the registration, the grouped state query and the
+ * completion of the futures, not the ovirt server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatePollingBenchmark {
+
+    /**
+     * Checks right away, every time
+     */
+    private static final WaitSchedule NO_WAIT = new WaitSchedule() {
+        public long nextDelayMillis() {
+            return 0;
+        }
+    };
+
+    @Param({"1", "10", "100", "1000"})
+    public int waiters;
+
+    private VMStateWatcher watcher;
+    private List<String> vmNames;
+
+    @Setup
+    public void setUp() {
+        SyntheticHypervisor hypervisor =
+                new SyntheticHypervisor(waiters, 0, 3600);
+        watcher = hypervisor.getStateWatcher();
+        vmNames = new ArrayList<String>();
+        for (int i = 0; i < waiters; i++) {
+            vmNames.add("vm-" + i);
+        }
+    }
+
+    @Benchmark
+    public void await(Blackhole blackhole) throws Exception {
+        List<ListenableFuture<String>> futures =
+                new ArrayList<ListenableFuture<String>>();
+        for (String vmName : vmNames) {
+            futures.add(watcher.await(vmName, NO_WAIT, "up"));
+        }
+        for (ListenableFuture<String> future : futures) {
+            blackhole.consume(future.get());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.ovirt;
+
+import org.ovirt.engine.sdk.decorators.VM;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SyntheticHypervisor is an OVirtHypervisor whose vms are SyntheticVMs, so
+ * that its caches, indexes and state watching can be benchmarked without an
+ * ovirt server. Only the inventory loading and the state lookups are
+ * replaced; everything above them is the plugin code.
+ */
+public class SyntheticHypervisor extends OVirtHypervisor {
+
+    private final Map<String, SyntheticVM> vms =
+            new ConcurrentHashMap<String, SyntheticVM>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger stateQueries = new AtomicInteger();
+
+    /**
+     * @param vmCount how many vms the hypervisor has, named 'vm-0', 'vm-1',
+     * etc, all up
+     * @param snapshotCount how many snapshots each vm has
+     * @param inventoryTTLSecs how long the inventory is cached
+     */
+    public SyntheticHypervisor(int vmCount, int snapshotCount,
+                               int inventoryTTLSecs) {
+        super("synthetic", "http://localhost/api", "", "admin", "admin",
+              inventoryTTLSecs);
+        for (int i = 0; i < vmCount; i++) {
+            SyntheticVM vm = new SyntheticVM(i, "up", snapshotCount);
+            vms.put(vm.getName(), vm);
+        }
+    }
+
+    /**
+     * @param vmName the vm name
+     * @return the vm, or null if there is no such vm
+     */
+    public SyntheticVM getSyntheticVM(String vmName) {
+        return vms.get(vmName);
+    }
+
+    /**
+     * @return how many times the whole inventory was loaded
+     */
+    public int getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return how many times the state of some vms was asked for
+     */
+    public int getStateQueries() {
+        return stateQueries.get();
+    }
+
+    @Override
+    protected List<VM> loadVMs() {
+        loads.incrementAndGet();
+        return new ArrayList<VM>(vms.values());
+    }
+
+    @Override
+    public Map<String, String> getVMStates(Collection<String> vmNames) {
+        stateQueries.incrementAndGet();
+        Map<String, String> states = new HashMap<String, String>();
+        for (String vmName : vmNames) {
+            SyntheticVM vm = vms.get(vmName);
+            if (vm != null) {
+                states.put(vmName, vm.getStatus().getState());
+            }
+        }
+        return states;
+    }
+}
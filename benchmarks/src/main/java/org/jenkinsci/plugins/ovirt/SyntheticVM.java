@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.ovirt;
+
+import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.decorators.VMSnapshot;
+import org.ovirt.engine.sdk.decorators.VMSnapshots;
+import org.ovirt.engine.sdk.entities.Status;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * SyntheticVM is a vm which only exists in memory, with its snapshots, so
+ * that the plugin code can be benchmarked without an ovirt server. None of
+ * its methods talk to a server.
+ */
+public class SyntheticVM extends VM {
+
+    private final SyntheticSnapshots snapshots;
+
+    /**
+     * @param index makes the name, id and href of the vm unique
+     * @param state the status of the vm, e.g 'up'
+     * @param snapshotCount how many snapshots the vm has, described
+     * 'snapshot-0', 'snapshot-1', etc
+     */
+    public SyntheticVM(int index, String state, int snapshotCount) {
+        super(null);
+        setId("00000000-0000-0000-0000-" + String.format("%012d", index));
+        setName("vm-" + index);
+        setHref("/api/vms/" + getId());
+        Status status = new Status();
+        status.setState(state);
+        setStatus(status);
+        snapshots = new SyntheticSnapshots(this, snapshotCount);
+    }
+
+    /**
+     * @param state the new status of the vm
+     */
+    public void setState(String state) {
+        getStatus().setState(state);
+    }
+
+    @Override
+    public VMSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * The snapshots of a SyntheticVM
+     */
+    private static final class SyntheticSnapshots extends VMSnapshots {
+        private final List<VMSnapshot> list = new ArrayList<VMSnapshot>();
+
+        private SyntheticSnapshots(VM vm, int count) {
+            super(null, vm);
+            DatatypeFactory dates;
+            try {
+                dates = DatatypeFactory.newInstance();
+            } catch (DatatypeConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < count; i++) {
+                VMSnapshot snapshot = new VMSnapshot(null, vm);
+                snapshot.setId(vm.getId() + "-snapshot-" + i);
+                snapshot.setDescription("snapshot-" + i);
+                GregorianCalendar date = new GregorianCalendar();
+                date.setTimeInMillis(i * 1000L);
+                snapshot.setDate(dates.newXMLGregorianCalendar(date));
+                list.add(snapshot);
+            }
+        }
+
+        @Override
+        public List<VMSnapshot> list() {
+            return new ArrayList<VMSnapshot>(list);
+        }
+
+        @Override
+        public VMSnapshot getById(String id) {
+            for (VMSnapshot snapshot : list) {
+                if (snapshot.getId().equals(id)) {
+                    return snapshot;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * InProcessLauncher connects its node to a slave agent running in this JVM,
+ * through pipes, so that the load test can bring hundreds of nodes online
+ * without vms to ssh into. It stands in for OVirtSshLauncher as the
+ * delegate of OVirtVMLauncher.
+ */
+public class InProcessLauncher extends ComputerLauncher {
+
+    private static final ExecutorService AGENTS =
+            Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    @Override
+    public void launch(final SlaveComputer computer, TaskListener listener)
+                                    throws IOException, InterruptedException {
+        final FastPipedInputStream agentIn = new FastPipedInputStream();
+        final FastPipedOutputStream masterOut =
+                new FastPipedOutputStream(agentIn);
+        FastPipedInputStream masterIn = new FastPipedInputStream();
+        final FastPipedOutputStream agentOut =
+                new FastPipedOutputStream(masterIn);
+
+        // the agent side blocks until the master side is set up
+        AGENTS.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                Channel agent = new Channel("agent " + computer.getName(),
+                                            AGENTS, agentIn, agentOut);
+                agent.join();
+                return null;
+            }
+        });
+        computer.setChannel(masterIn, masterOut, listener, null);
+    }
+
+    @Extension
+    public static final class DescriptorImpl
+                                    extends Descriptor<ComputerLauncher> {
+        @Override
+        public String getDisplayName() {
+            return "In-process agent (load test)";
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import net.sf.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Launches hundreds of OVirtVMSlave nodes at the same time against a
+ * FakeEngine, and reports the throughput and the distribution of the launch
+ * times, from the connection request to the node being online. Each node
+ * reverts its own vm to a snapshot, so the launches go through the shutdown,
+ * restore and boot of the BatchLaunchCoordinator; the time spent in each of
+ * those phases is reported from the LaunchMetrics.
+ *
+ * Only run with the 'load' profile. The load is set with system properties,
+ * e.g:
+ *
+ *   mvn test -Pload -Dload.launches=500 -Dload.latencyMillis=100
+ *
+ * The report is printed, and written as JSON to target/load-result.json.
+ */
+public class LaunchLoadTest {
+
+    private static final int LAUNCHES = Integer.getInteger("load.launches", 200);
+    private static final int STORAGE_DOMAINS =
+            Integer.getInteger("load.storageDomains", 4);
+    private static final long LATENCY_MILLIS =
+            Long.getLong("load.latencyMillis", 20);
+    private static final long JITTER_MILLIS =
+            Long.getLong("load.jitterMillis", 30);
+    private static final double FAILURE_RATE = Double.parseDouble(
+            System.getProperty("load.failureRate", "0"));
+    private static final long SHUTDOWN_MILLIS =
+            Long.getLong("load.shutdownMillis", 2000);
+    private static final long UNLOCK_MILLIS =
+            Long.getLong("load.unlockMillis", 3000);
+    private static final long BOOT_MILLIS =
+            Long.getLong("load.bootMillis", 5000);
+    private static final String RESULT_FILE =
+            System.getProperty("load.result", "target/load-result.json");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void concurrentLaunches() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        engine.setLatency(LATENCY_MILLIS, JITTER_MILLIS);
+        engine.setFailureRate(FAILURE_RATE);
+        engine.setTransitionTimes(SHUTDOWN_MILLIS, UNLOCK_MILLIS, BOOT_MILLIS);
+        for (int i = 0; i < LAUNCHES; i++) {
+            // half of the vms are left running, the others were shut down
+            engine.addVM(vmName(i), i % 2 == 0 ? "up" : "down",
+                         "domain-" + i % STORAGE_DOMAINS, "clean");
+        }
+        engine.start();
+
+        try {
+            OVirtHypervisor hypervisor = new OVirtHypervisor("fake",
+                    engine.getUrl(), engine.getClusterName(), "admin@internal",
+                    "secret", 60);
+            j.jenkins.clouds.add(hypervisor);
+
+            File remoteFS = j.createTmpDir();
+            List<OVirtVMSlave> slaves = new ArrayList<OVirtVMSlave>();
+            for (int i = 0; i < LAUNCHES; i++) {
+                slaves.add(new OVirtVMSlave(vmName(i), "",
+                        new File(remoteFS, vmName(i)).getPath(), "1",
+                        Node.Mode.NORMAL, "", new InProcessLauncher(),
+                        RetentionStrategy.NOOP,
+                        hypervisor.getHypervisorDescription(), "clean",
+                        1, 600, null, vmName(i),
+                        Collections.<NodeProperty<?>>emptyList()));
+            }
+            j.jenkins.setNodes(slaves);
+
+            long start = System.currentTimeMillis();
+            long[] latencies = launchAll(slaves);
+            report(engine, hypervisor, latencies,
+                   System.currentTimeMillis() - start);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    private static String vmName(int i) {
+        return "load-" + i;
+    }
+
+    /**
+     * @return how long each launch took, or -1 for the failed ones
+     */
+    private long[] launchAll(List<OVirtVMSlave> slaves) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(slaves.size());
+        try {
+            List<Future<Long>> launches = new ArrayList<Future<Long>>();
+            for (final OVirtVMSlave slave : slaves) {
+                launches.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        try {
+                            slave.toComputer().connect(false).get();
+                        } catch (ExecutionException e) {
+                            return -1L;
+                        }
+                        long took = System.currentTimeMillis() - start;
+                        return slave.toComputer().isOnline() ? took : -1L;
+                    }
+                }));
+            }
+
+            long[] latencies = new long[launches.size()];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = launches.get(i).get();
+            }
+            return latencies;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void report(FakeEngine engine, OVirtHypervisor hypervisor,
+                        long[] latencies, long wall) throws IOException {
+        long[] online = new long[latencies.length];
+        int count = 0;
+        for (long latency : latencies) {
+            if (latency >= 0) {
+                online[count++] = latency;
+            }
+        }
+        online = Arrays.copyOf(online, count);
+        Arrays.sort(online);
+        double throughput = wall == 0 ? 0 : count * 1000.0 / wall;
+
+        JSONObject latency = new JSONObject()
+                .element("p50", percentile(online, 50))
+                .element("p95", percentile(online, 95))
+                .element("p99", percentile(online, 99))
+                .element("max", count == 0 ? 0 : online[count - 1]);
+        JSONObject phases = new JSONObject();
+        for (LaunchMetrics.Stats stats : LaunchMetrics.get().getStats(
+                hypervisor.getHypervisorDescription())) {
+            phases.element(stats.getPhase(), new JSONObject()
+                    .element("count", stats.getCount())
+                    .element("p50", stats.getP50())
+                    .element("p95", stats.getP95())
+                    .element("p99", stats.getP99())
+                    .element("max", stats.getMax()));
+        }
+        JSONObject result = new JSONObject()
+                .element("launches", latencies.length)
+                .element("online", count)
+                .element("failed", latencies.length - count)
+                .element("wallMillis", wall)
+                .element("launchesPerSecond", throughput)
+                .element("latencyMillis", latency)
+                .element("phases", phases)
+                .element("engineRequests", engine.getRequests())
+                .element("injectedFailures", engine.getInjectedFailures());
+
+        System.out.println("Launched " + count + "/" + latencies.length
+                + " nodes in " + wall + " ms ("
+                + String.format("%.2f", throughput) + " launches/s)");
+        System.out.println("Launch latency (ms): " + latency);
+        System.out.println("Phases (ms): " + phases.toString(2));
+        System.out.println("Engine requests: " + engine.getRequests()
+                + ", injected failures: " + engine.getInjectedFailures());
+
+        OutputStream out = new FileOutputStream(RESULT_FILE);
+        try {
+            out.write(result.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        if (FAILURE_RATE == 0) {
+            Assert.assertEquals("Nodes which did not come online",
+                                latencies.length, count);
+        }
+    }
+
+    /**
+     * @return the nearest rank percentile, like the LaunchMetrics
+     */
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Every minute, keep the idle sessions of all the ovirt hypervisors alive,
+ * and drop the broken ones. The sessions of the hypervisors which are no
+ * longer configured are closed.
+ *
+ * @see ApiPool
+ */
+@Extension
+public class ApiKeepAlive extends AsyncPeriodicWork {
+
+    public ApiKeepAlive() {
+        super("oVirt session keepalive");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener)
+                                    throws IOException, InterruptedException {
+        Set<ApiPool> current = new HashSet<ApiPool>();
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof OVirtHypervisor) {
+                ApiPool pool = ((OVirtHypervisor) cloud).getApiPool();
+                current.add(pool);
+                pool.keepAlive();
+            }
+        }
+        for (ApiPool pool : ApiPool.getAll()) {
+            if (!current.contains(pool)) {
+                pool.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package org.jenkinsci.plugins.ovirt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.Api;
+import org.ovirt.engine.sdk.exceptions.ServerException;
+
+/**
+ * ApiPool holds the authenticated sessions to one ovirt server, so that
+ * concurrent callers each get their own Api object instead of sharing a
+ * single one.
+ *
+ * At most 'maxSessions' sessions are opened; callers wait for a session to
+ * be given back when they are all in use. A session rejected by the server
+ * because it expired is logged in again, and the call retried once. Sessions
+ * which broke, e.g because the server went away, are dropped and replaced
+ * by new ones on the next call.
+ *
+ * Sessions are opened through the SessionStore, which gives each of them a
+ * server session of its own, reusing the stored ones the ovirt server still
+ * accepts.
+ *
+ * Idle sessions are kept alive, and checked, by ApiKeepAlive. The ones idle
+ * for too long are closed, down to a single one. ApiKeepAlive also shuts down
+ * the pools of the hypervisors which were replaced, e.g because the clouds
+ * were reconfigured.
+ *
+ * @see ApiKeepAlive
+ */
+public class ApiPool {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(ApiPool.class.getName());
+
+    /**
+     * Most sessions opened to one ovirt server at the same time
+     */
+    private static final int MAX_SESSIONS = Integer.getInteger(
+            ApiPool.class.getName() + ".maxSessions", 4);
+
+    /**
+     * How long a caller waits for a session when they are all in use
+     */
+    private static final long BORROW_TIMEOUT_MILLIS =
+            TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Sessions idle for that long are checked by the keepalive, before the
+     * ovirt server expires them
+     */
+    private static final long KEEPALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Sessions idle for that long are closed, except the last one
+     */
+    private static final long MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * A call to make with a session of the pool
+     */
+    public interface ApiCall<T> {
+        T call(Api api) throws Exception;
+    }
+
+    /**
+     * The pools which were not shut down yet
+     */
+    private static final Set<ApiPool> ALL =
+            Collections.synchronizedSet(new HashSet<ApiPool>());
+
+    private static final class Session {
+        private final Api api;
+        private final String sessionId;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Session(SessionStore.OpenedSession opened) {
+            this.api = opened.getApi();
+            this.sessionId = opened.getSessionId();
+        }
+    }
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    /**
+     * Name the calls are counted under in the LaunchMetrics
+     */
+    private final String metricsName;
+
+    // most recently used sessions first
+    private final LinkedList<Session> idle = new LinkedList<Session>();
+    private int opened = 0;
+    private boolean shutdown = false;
+
+    public ApiPool(String url, String username, String password) {
+        this(url, username, password, url);
+    }
+
+    public ApiPool(String url, String username, String password,
+                   String metricsName) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.metricsName = metricsName;
+        ALL.add(this);
+    }
+
+    /**
+     * @return the pools which were not shut down yet
+     */
+    public static List<ApiPool> getAll() {
+        synchronized (ALL) {
+            return new ArrayList<ApiPool>(ALL);
+        }
+    }
+
+    /**
+     * Make the call with a session of the pool. If the session expired, log
+     * in again and retry the call once.
+     *
+     * @param call what to do with the session
+     * @param <T> what the call returns
+     * @return what the call returned
+     * @throws Exception the call failed, or no session could be opened
+     */
+    public <T> T execute(ApiCall<T> call) throws Exception {
+        boolean failed = true;
+        try {
+            T result = executeWithSession(call);
+            failed = false;
+            return result;
+        } finally {
+            LaunchMetrics.get().countCall(metricsName, failed);
+        }
+    }
+
+    private <T> T executeWithSession(ApiCall<T> call) throws Exception {
+        Session session = borrow();
+        try {
+            try {
+                return call.call(session.api);
+            } catch (ServerException e) {
+                if (!isSessionExpired(e)) {
+                    throw e;
+                }
+                LOGGER.log(Level.INFO, "Session to " + url
+                                       + " expired, logging in again");
+                close(session);
+                session = null;
+                session = login();
+                return call.call(session.api);
+            }
+        } catch (IOException e) {
+            // the connection broke: don't hand that session out again
+            if (session != null) {
+                close(session);
+                session = null;
+            }
+            throw e;
+        } finally {
+            if (session != null) {
+                release(session);
+            } else {
+                dropped();
+            }
+        }
+    }
+
+    /**
+     * Get an idle session, opening a new one if there is none and the pool
+     * is not full, or else wait for one to be given back.
+     */
+    private Session borrow() throws Exception {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MILLIS;
+        synchronized (idle) {
+            if (shutdown) {
+                throw new IOException("Sessions to " + url + " are closed");
+            }
+            while (idle.isEmpty() && opened >= Math.max(MAX_SESSIONS, 1)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IOException("All the " + opened
+                            + " sessions to " + url + " are busy");
+                }
+                idle.wait(left);
+            }
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+            opened++;
+        }
+
+        try {
+            return login();
+        } catch (Exception e) {
+            dropped();
+            throw e;
+        }
+    }
+
+    private void release(Session session) {
+        session.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!shutdown) {
+                idle.addFirst(session);
+                idle.notify();
+                return;
+            }
+        }
+        close(session);
+        dropped();
+    }
+
+    /**
+     * A session was closed without being replaced
+     */
+    private void dropped() {
+        synchronized (idle) {
+            opened--;
+            idle.notify();
+        }
+    }
+
+    private Session login() throws Exception {
+        return new Session(SessionStore.get().open(url, username, password));
+    }
+
+    private void close(Session session) {
+        SessionStore.get().close(url, username, session.sessionId);
+        try {
+            session.api.shutdown();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not close ovirt session", e);
+        }
+    }
+
+    private static boolean isSessionExpired(ServerException e) {
+        return e.getCode() == 401;
+    }
+
+    /**
+     * Check the sessions idle for more than KEEPALIVE_MILLIS with a light
+     * request, which also keeps them from expiring. Broken ones are closed,
+     * as well as the ones idle for more than MAX_IDLE_MILLIS, keeping at
+     * least one session open.
+     */
+    public void keepAlive() {
+        long now = System.currentTimeMillis();
+        List<Session> toCheck = new ArrayList<Session>();
+        List<Session> toClose = new ArrayList<Session>();
+
+        synchronized (idle) {
+            for (Iterator<Session> it = idle.iterator(); it.hasNext();) {
+                Session session = it.next();
+                long idleMillis = now - session.lastUsed;
+                if (idleMillis > MAX_IDLE_MILLIS && opened > 1) {
+                    it.remove();
+                    opened--;
+                    toClose.add(session);
+                } else if (idleMillis > KEEPALIVE_MILLIS) {
+                    it.remove();
+                    toCheck.add(session);
+                }
+            }
+        }
+
+        for (Session session : toClose) {
+            close(session);
+        }
+        for (Session session : toCheck) {
+            try {
+                session.api.getClusters().list();
+                release(session);
+            } catch (Exception e) {
+                LOGGER.log(Level.INFO, "Dropping broken session to " + url, e);
+                close(session);
+                dropped();
+            }
+        }
+    }
+
+    /**
+     * Close all the idle sessions. Sessions in use are closed when they are
+     * given back.
+     */
+    public void shutdown() {
+        ALL.remove(this);
+        List<Session> sessions;
+        synchronized (idle) {
+            shutdown = true;
+            sessions = new ArrayList<Session>(idle);
+            opened -= idle.size();
+            idle.clear();
+        }
+        for (Session session : sessions) {
+            close(session);
+        }
+    }
+}
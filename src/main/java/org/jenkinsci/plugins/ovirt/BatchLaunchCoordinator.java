@@ -0,0 +1,580 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.decorators.VMDisk;
+import org.ovirt.engine.sdk.decorators.VMSnapshot;
+import org.ovirt.engine.sdk.entities.StorageDomain;
+
+/**
+ * BatchLaunchCoordinator gets the vms of the nodes being launched on one
+ * hypervisor ready, all together.
+ *
+ * When many nodes are launched at the same time, e.g after a Jenkins
+ * restart, their launchers hand their vm over to the coordinator instead of
+ * each of them shutting down, reverting and starting its own vm. Launches
+ * that come in within 'gatherMillis' of each other form a batch: the vms of
+ * the batch are fetched in one request, the shutdown actions are sent in one
+ * go and the VMStateWatcher polls all the vms in bulk. Each vm then moves on
+ * as soon as its own step is done: it is restored once it is down, started
+ * once it is unlocked, and its launch completes once it is up, whatever the
+ * other vms of the batch are doing.
+ *
+ * Restoring a snapshot is heavy on the storage, so only
+ * 'maxRestoresPerStorageDomain' restores run at the same time on a storage
+ * domain, across all the batches.
+ */
+public class BatchLaunchCoordinator {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(BatchLaunchCoordinator.class.getName());
+
+    /**
+     * How long to wait for more launches before starting a batch
+     */
+    private static final long GATHER_MILLIS = Long.getLong(
+            BatchLaunchCoordinator.class.getName() + ".gatherMillis", 2000);
+
+    /**
+     * How many snapshot restores can run at the same time on a storage
+     * domain
+     */
+    private static final int MAX_RESTORES_PER_DOMAIN = Integer.getInteger(
+            BatchLaunchCoordinator.class.getName()
+            + ".maxRestoresPerStorageDomain", 4);
+
+    /**
+     * How many actions are sent to the ovirt server at the same time
+     */
+    private static final int ACTION_BATCH_SIZE = 10;
+
+    /**
+     * One vm to get ready, for one launcher
+     */
+    private static final class Launch {
+        private final String vmName;
+        private final String snapshotName;
+        private final WaitStrategy waitStrategy;
+        private final TaskListener listener;
+        private final SettableFuture<Void> done = SettableFuture.create();
+
+        private VM vm;
+        private VMSnapshot snapshot;
+        private List<String> storageDomains = Collections.emptyList();
+        private ListenableFuture<String> waiting;
+        private long since;
+        private long reached;
+
+        private Launch(String vmName, String snapshotName,
+                       WaitStrategy waitStrategy, TaskListener listener) {
+            this.vmName = vmName;
+            this.snapshotName = snapshotName == null ? "" : snapshotName.trim();
+            this.waitStrategy = waitStrategy;
+            this.listener = listener;
+        }
+
+        private boolean hasSnapshot() {
+            return snapshotName.length() > 0;
+        }
+
+        private boolean isAlive() {
+            return !done.isDone();
+        }
+
+        private void log(String text) {
+            listener.getLogger().println(text);
+        }
+
+        private void fail(Throwable t) {
+            if (waiting != null) {
+                waiting.cancel(false);
+            }
+            done.setException(t);
+        }
+    }
+
+    /**
+     * Something to do for one vm of a batch
+     */
+    private interface Step {
+        void run(Launch launch) throws Exception;
+    }
+
+    private final OVirtHypervisor hypervisor;
+    private final List<Launch> gathering = new ArrayList<Launch>();
+    private final Map<String, Semaphore> restoreSlots =
+            new HashMap<String, Semaphore>();
+
+    public BatchLaunchCoordinator(OVirtHypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * Get a vm ready to be connected to: if a snapshot is given, shut the vm
+     * down and revert it to the snapshot; then start the vm if it is down.
+     *
+     * @param vmName the vm name
+     * @param snapshotName the snapshot to revert to, or empty
+     * @param waitStrategy how to wait on the vm
+     * @param listener where to log what happens to the vm
+     * @return future completed once the vm is up
+     */
+    public ListenableFuture<Void> prepare(String vmName, String snapshotName,
+                                          WaitStrategy waitStrategy,
+                                          TaskListener listener) {
+        Launch launch = new Launch(vmName, snapshotName, waitStrategy,
+                                   listener);
+        boolean first;
+        synchronized (gathering) {
+            first = gathering.isEmpty();
+            gathering.add(launch);
+        }
+        if (first) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    runBatch();
+                }
+            });
+        }
+        return launch.done;
+    }
+
+    private void runBatch() {
+        List<Launch> batch;
+        try {
+            Thread.sleep(GATHER_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (gathering) {
+            batch = new ArrayList<Launch>(gathering);
+            gathering.clear();
+        }
+
+        try {
+            LOGGER.log(Level.INFO, "Preparing " + batch.size() + " vms on "
+                                   + hypervisor.getHypervisorDescription());
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            process(batch);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.log(Level.WARNING, "Could not prepare the vms on "
+                    + hypervisor.getHypervisorDescription(), e);
+            for (Launch launch : batch) {
+                launch.fail(e);
+            }
+        }
+    }
+
+    private void process(List<Launch> batch) throws Exception {
+        Map<String, Launch> byName = new HashMap<String, Launch>();
+        for (Launch launch : batch) {
+            byName.put(launch.vmName, launch);
+        }
+        long resolveStart = System.currentTimeMillis();
+        for (VM vm : hypervisor.findVMs(byName.keySet())) {
+            byName.get(vm.getName()).vm = vm;
+        }
+        long resolved = System.currentTimeMillis() - resolveStart;
+        for (Launch launch : batch) {
+            record(launch, "resolve", resolved);
+        }
+
+        List<Launch> toShutdown = new ArrayList<Launch>();
+        List<Launch> toUnlock = new ArrayList<Launch>();
+        List<Launch> toStart = new ArrayList<Launch>();
+        for (Launch launch : batch) {
+            if (launch.vm == null) {
+                launch.fail(new IllegalStateException("VM '" + launch.vmName
+                                                      + "' not found"));
+            } else if (launch.hasSnapshot()) {
+                if (isInState(launch.vm, "down")) {
+                    launch.log(launch.vmName + " is already shutdown");
+                } else {
+                    toShutdown.add(launch);
+                }
+                toUnlock.add(launch);
+            } else if (isInState(launch.vm, "image_locked")) {
+                // e.g the vm was just created from a template
+                toUnlock.add(launch);
+            } else if (isInState(launch.vm, "down")) {
+                toStart.add(launch);
+            } else {
+                launch.log(launch.vmName + " is already up");
+                launch.done.set(null);
+            }
+        }
+
+        // the vms to restore come in there once down, and again once unlocked
+        BlockingQueue<Launch> events = new LinkedBlockingQueue<Launch>();
+        for (Launch launch : toUnlock) {
+            if (!toShutdown.contains(launch)) {
+                events.add(launch);
+            }
+        }
+        shutdown(toShutdown, events);
+
+        forEach(toUnlock, new Step() {
+            public void run(Launch launch) throws Exception {
+                if (launch.hasSnapshot()) {
+                    findSnapshot(launch);
+                }
+            }
+        });
+
+        forEach(toStart, new Step() {
+            public void run(Launch launch) throws Exception {
+                start(launch);
+            }
+        });
+        restoreAndStart(toUnlock, events);
+    }
+
+    /**
+     * Send the shutdown actions for all those vms. Each vm is handed to the
+     * restores through 'down' once it is down, or once its wait is over.
+     */
+    private void shutdown(List<Launch> launches,
+                          final BlockingQueue<Launch> down)
+                                                throws InterruptedException {
+        forEach(launches, new Step() {
+            public void run(final Launch launch) throws Exception {
+                launch.log(launch.vmName + " is to be shutdown");
+                hypervisor.shutdownVM(launch.vm.getId());
+                launch.since = System.currentTimeMillis();
+                launch.log("Waiting for " + launch.vmName + " to shutdown...");
+                whenReached(launch, hypervisor.getStateWatcher().await(
+                        launch.vmName,
+                        schedule(launch, WaitStrategy.Transition.SHUTDOWN),
+                        "down"), new Runnable() {
+                    public void run() {
+                        if (waitFor(launch, WaitStrategy.Transition.SHUTDOWN,
+                                    "VM did not shutdown at all!")) {
+                            launch.log("VM is now shutdown");
+                        }
+                        down.add(launch);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Restore the snapshots of those vms as they come down through 'events',
+     * as many at a time as the storage domains allow, and wait for them to
+     * be unlocked. Each vm is started as soon as it is unlocked.
+     */
+    private void restoreAndStart(List<Launch> launches,
+                                 final BlockingQueue<Launch> events)
+                                                throws InterruptedException {
+        List<Launch> comingDown = new ArrayList<Launch>(launches);
+        LinkedList<Launch> queue = new LinkedList<Launch>();
+        List<Launch> restoring = new ArrayList<Launch>();
+
+        while (!comingDown.isEmpty() || !queue.isEmpty()
+               || !restoring.isEmpty()) {
+            // a vm failed on the way won't come down
+            for (Iterator<Launch> it = comingDown.iterator(); it.hasNext();) {
+                if (!it.next().isAlive()) {
+                    it.remove();
+                }
+            }
+
+            for (Iterator<Launch> it = queue.iterator(); it.hasNext();) {
+                final Launch launch = it.next();
+                if (!acquireRestoreSlots(launch.storageDomains)) {
+                    continue;
+                }
+                it.remove();
+                try {
+                    if (launch.snapshot != null) {
+                        long restoreStart = System.currentTimeMillis();
+                        hypervisor.restoreSnapshot(launch.vm.getId(),
+                                                   launch.snapshotName);
+                        record(launch, "revert",
+                               System.currentTimeMillis() - restoreStart);
+                        launch.log("Reverted '" + launch.vmName
+                                   + "' to snapshot '"
+                                   + launch.snapshot.getDescription() + "'");
+                    }
+                    lifecycleOf(launch).moveTo(VMLifecycle.State.LOCKED);
+                    launch.since = System.currentTimeMillis();
+                    launch.log("Waiting till the VM is not image locked...");
+                    restoring.add(launch);
+                    whenReached(launch, hypervisor.getStateWatcher().awaitLeaving(
+                            launch.vmName,
+                            schedule(launch, WaitStrategy.Transition.UNLOCK),
+                            "image_locked"), new Runnable() {
+                        public void run() {
+                            events.add(launch);
+                        }
+                    });
+                } catch (Exception e) {
+                    restoring.remove(launch);
+                    releaseRestoreSlots(launch.storageDomains);
+                    launch.fail(e);
+                }
+            }
+
+            // slots may also be freed by other batches, so don't block
+            Launch launch = events.poll(1, TimeUnit.SECONDS);
+            if (launch == null) {
+                continue;
+            }
+            if (!restoring.remove(launch)) {
+                // down, or given up on
+                if (comingDown.remove(launch) && launch.isAlive()) {
+                    queue.add(launch);
+                }
+                continue;
+            }
+            releaseRestoreSlots(launch.storageDomains);
+            if (waitFor(launch, WaitStrategy.Transition.UNLOCK,
+                        "VM is still image locked. Giving up!")) {
+                try {
+                    start(launch);
+                } catch (Exception e) {
+                    launch.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the vm, and complete its launch as soon as it is up.
+     */
+    private void start(final Launch launch) throws Exception {
+        launch.log(launch.vmName + " is to be started");
+        lifecycleOf(launch).moveTo(VMLifecycle.State.BOOTING);
+        hypervisor.startVM(launch.vm.getId());
+        launch.since = System.currentTimeMillis();
+        launch.log("Waiting for " + launch.vmName + " to start...");
+        whenReached(launch, hypervisor.getStateWatcher().await(
+                launch.vmName, schedule(launch, WaitStrategy.Transition.BOOT),
+                "up"), new Runnable() {
+            public void run() {
+                if (launch.isAlive() && waitFor(launch,
+                        WaitStrategy.Transition.BOOT,
+                        "VM did not startup at all!")) {
+                    launch.log("VM is now online!");
+                    launch.done.set(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Make the launch wait on the future, and run 'then' once it is
+     * completed, having noted when.
+     */
+    private static void whenReached(final Launch launch,
+                                    ListenableFuture<String> waiting,
+                                    final Runnable then) {
+        launch.waiting = waiting;
+        waiting.addListener(new Runnable() {
+            public void run() {
+                launch.reached = System.currentTimeMillis();
+                then.run();
+            }
+        }, Computer.threadPoolForRemoting);
+    }
+
+    /**
+     * @return the lifecycle of the vm. Moving it fails if the launch was
+     * abandoned meanwhile, e.g the node was disconnected, so that the vm is
+     * then left alone.
+     */
+    private VMLifecycle lifecycleOf(Launch launch) {
+        return VMLifecycle.of(hypervisor.getHypervisorDescription(),
+                              launch.vmName);
+    }
+
+    /**
+     * Run a step for each of those vms which has not failed yet,
+     * ACTION_BATCH_SIZE vms at a time. A vm whose step throws is failed.
+     */
+    private void forEach(List<Launch> launches, final Step step)
+                                                throws InterruptedException {
+        List<Launch> alive = new ArrayList<Launch>();
+        for (Launch launch : launches) {
+            if (launch.isAlive()) {
+                alive.add(launch);
+            }
+        }
+
+        for (int i = 0; i < alive.size(); i += ACTION_BATCH_SIZE) {
+            List<Future<?>> running = new ArrayList<Future<?>>();
+            for (final Launch launch : alive.subList(i,
+                    Math.min(i + ACTION_BATCH_SIZE, alive.size()))) {
+                running.add(Computer.threadPoolForRemoting.submit(
+                        new Runnable() {
+                            public void run() {
+                                try {
+                                    step.run(launch);
+                                } catch (Exception e) {
+                                    launch.fail(e);
+                                }
+                            }
+                        }));
+            }
+            for (Future<?> future : running) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // the launch was failed by the step itself
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the completed future the launch was waiting on, and record how
+     * long the vm took to get there. If the wait strategy gave up or the
+     * watcher failed, the launch is failed.
+     *
+     * @return true if the vm reached the state waited for
+     */
+    private boolean waitFor(Launch launch, WaitStrategy.Transition transition,
+                            String giveUpMessage) {
+        try {
+            launch.waiting.get();
+        } catch (InterruptedException e) {
+            // the future is done, so this does not happen
+            Thread.currentThread().interrupt();
+            launch.fail(e);
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                launch.log(giveUpMessage);
+                launch.fail(new Exception(giveUpMessage));
+            } else {
+                launch.fail(e.getCause());
+            }
+            return false;
+        } finally {
+            launch.waiting = null;
+        }
+
+        long elapsed = launch.reached - launch.since;
+        launch.log("Took " + elapsed / 1000 + " seconds");
+        VMTimingHistory.get().record(hypervisor.getHypervisorDescription(),
+                                     launch.vmName, transition, elapsed);
+        record(launch, transition.name().toLowerCase(), elapsed);
+        return true;
+    }
+
+    private void record(Launch launch, String phase, long millis) {
+        LaunchMetrics.get().record(hypervisor.getHypervisorDescription(),
+                                   launch.vmName, phase, millis);
+    }
+
+    private WaitSchedule schedule(Launch launch,
+                                  WaitStrategy.Transition transition) {
+        return launch.waitStrategy.newSchedule(
+                hypervisor.getHypervisorDescription(), launch.vmName,
+                transition);
+    }
+
+    private static boolean isInState(VM vm, String state) {
+        return vm.getStatus().getState().equalsIgnoreCase(state);
+    }
+
+    /**
+     * The snapshot to revert to is looked up through the snapshot index of
+     * the hypervisor, which checks that the snapshot it remembers is still
+     * the one with that description, along with the storage domains of the
+     * disks of the vm.
+     */
+    private void findSnapshot(final Launch launch) throws Exception {
+        hypervisor.executeOnVM(launch.vm.getId(),
+                new OVirtHypervisor.VMCall<Void>() {
+                    public Void call(VM vm) throws Exception {
+                        launch.snapshot = hypervisor.getSnapshotIndex()
+                                .find(vm, launch.snapshotName);
+                        launch.storageDomains = storageDomainsOf(vm);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return the ids of the storage domains the disks of the vm are on,
+     * sorted so that slots are always acquired in the same order
+     */
+    private static List<String> storageDomainsOf(VM vm) throws Exception {
+        TreeSet<String> ids = new TreeSet<String>();
+        for (VMDisk disk : vm.getDisks().list()) {
+            if (disk.getStorageDomains() == null) {
+                continue;
+            }
+            for (StorageDomain domain
+                    : disk.getStorageDomains().getStorageDomains()) {
+                ids.add(domain.getId());
+            }
+        }
+        return new ArrayList<String>(ids);
+    }
+
+    /**
+     * Take a restore slot on each of the storage domains, or none at all.
+     *
+     * @return true if the slots were taken
+     */
+    private boolean acquireRestoreSlots(List<String> domains) {
+        List<Semaphore> taken = new ArrayList<Semaphore>();
+        for (String domain : domains) {
+            Semaphore slots = restoreSlots(domain);
+            if (!slots.tryAcquire()) {
+                for (Semaphore s : taken) {
+                    s.release();
+                }
+                return false;
+            }
+            taken.add(slots);
+        }
+        return true;
+    }
+
+    private void releaseRestoreSlots(List<String> domains) {
+        for (String domain : domains) {
+            restoreSlots(domain).release();
+        }
+    }
+
+    private Semaphore restoreSlots(String domain) {
+        synchronized (restoreSlots) {
+            Semaphore slots = restoreSlots.get(domain);
+            if (slots == null) {
+                slots = new Semaphore(Math.max(MAX_RESTORES_PER_DOMAIN, 1));
+                restoreSlots.put(domain, slots);
+            }
+            return slots;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check on the vm quickly at first, then less and less often: each delay is
+ * 'multiplier' times the previous one, up to 'maxDelaySec'. Some random
+ * jitter is added so that vms launched together don't all get checked at
+ * the same time. Gives up after 'timeoutSec' seconds.
+ */
+public class ExponentialBackoffWaitStrategy extends WaitStrategy {
+
+    private final int initialDelaySec;
+    private final int maxDelaySec;
+    private final double multiplier;
+    private final int timeoutSec;
+
+    @DataBoundConstructor
+    public ExponentialBackoffWaitStrategy(int initialDelaySec, int maxDelaySec,
+                                          double multiplier, int timeoutSec) {
+        this.initialDelaySec = initialDelaySec;
+        this.maxDelaySec = maxDelaySec;
+        this.multiplier = multiplier;
+        this.timeoutSec = timeoutSec;
+    }
+
+    public int getInitialDelaySec() {
+        return initialDelaySec;
+    }
+
+    public int getMaxDelaySec() {
+        return maxDelaySec;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public int getTimeoutSec() {
+        return timeoutSec;
+    }
+
+    @Override
+    public WaitSchedule newSchedule(String hypervisorDescription,
+                                    String vmName,
+                                    Transition transition) {
+        return schedule(0,
+                        TimeUnit.SECONDS.toMillis(initialDelaySec),
+                        TimeUnit.SECONDS.toMillis(maxDelaySec),
+                        multiplier,
+                        TimeUnit.SECONDS.toMillis(timeoutSec));
+    }
+
+    /**
+     * Create an exponential backoff schedule with jitter.
+     *
+     * @param firstDelayMillis delay before the first check
+     * @param initialDelayMillis delay after the first check
+     * @param maxDelayMillis upper bound of the delay
+     * @param multiplier growth of the delay between each check
+     * @param timeoutMillis give up after that long
+     * @return the WaitSchedule
+     */
+    static WaitSchedule schedule(final long firstDelayMillis,
+                                 final long initialDelayMillis,
+                                 final long maxDelayMillis,
+                                 final double multiplier,
+                                 final long timeoutMillis) {
+        return new WaitSchedule() {
+            private final Random random = new Random();
+            private long waited = 0;
+            private double delay = -1;
+
+            public long nextDelayMillis() {
+                long next;
+                if (delay < 0) {
+                    delay = Math.max(initialDelayMillis, 1);
+                    next = firstDelayMillis;
+                } else {
+                    // half of the delay is fixed, the other half is random
+                    next = (long) (delay / 2 + random.nextDouble() * delay / 2);
+                    delay = Math.min(delay * Math.max(multiplier, 1),
+                                     maxDelayMillis);
+                }
+
+                if (waited >= timeoutMillis) {
+                    return -1;
+                }
+                next = Math.min(next, timeoutMillis - waited);
+                waited += next;
+                return next;
+            }
+        };
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<WaitStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Exponential backoff";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check on the vm every 'waitSec' seconds, 'retries' times, before giving
+ * up. This is how the plugin always behaved.
+ */
+public class FixedWaitStrategy extends WaitStrategy {
+
+    private final int waitSec;
+    private final int retries;
+
+    @DataBoundConstructor
+    public FixedWaitStrategy(int waitSec, int retries) {
+        this.waitSec = waitSec;
+        this.retries = retries;
+    }
+
+    public int getWaitSec() {
+        return waitSec;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    @Override
+    public WaitSchedule newSchedule(String hypervisorDescription,
+                                    String vmName,
+                                    Transition transition) {
+        return new WaitSchedule() {
+            private int checks = 0;
+
+            public long nextDelayMillis() {
+                if (checks++ >= retries) {
+                    return -1;
+                }
+                return TimeUnit.SECONDS.toMillis(waitSec);
+            }
+        };
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<WaitStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Fixed interval";
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HostKeyStore remembers the ssh host key of each vm, keyed by the ovirt id
+ * of the vm, so that launches can check that they talk to the right vm even
+ * though vms change addresses. It is saved in the Jenkins home directory so
+ * that it survives restarts.
+ *
+ * The key of a vm is trusted the first time it is seen, unless the expected
+ * fingerprint is given, e.g the one of the snapshot the vm is reverted to:
+ * the check is then strict from the first launch on.
+ */
+public class HostKeyStore {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(HostKeyStore.class.getName());
+
+    private static HostKeyStore instance;
+
+    /**
+     * Fingerprint of the host key, by vm id
+     */
+    private final Map<String, String> fingerprints =
+            new HashMap<String, String>();
+
+    /**
+     * @return the HostKeyStore, loaded from disk the first time
+     */
+    public static synchronized HostKeyStore get() {
+        if (instance == null) {
+            XmlFile file = getConfigFile();
+            try {
+                if (file.exists()) {
+                    instance = (HostKeyStore) file.read();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not load " + file, e);
+            }
+            if (instance == null) {
+                instance = new HostKeyStore();
+            }
+        }
+        return instance;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(),
+                                    HostKeyStore.class.getName() + ".xml"));
+    }
+
+    /**
+     * Get the verifier checking the host key of a vm.
+     *
+     * @param vmId the ovirt id of the vm
+     * @param vmName the vm name, for the messages
+     * @param expectedFingerprint the fingerprint the key must have, or
+     * empty to trust the key seen the first time
+     * @return the verifier to connect with
+     */
+    public ServerHostKeyVerifier verifierFor(final String vmId,
+                                             final String vmName,
+                                             final String expectedFingerprint) {
+        return new ServerHostKeyVerifier() {
+            public boolean verifyServerHostKey(String hostname, int port,
+                                               String algorithm,
+                                               byte[] key) {
+                String fingerprint =
+                        KnownHosts.createHexFingerprint(algorithm, key);
+                String expected = expectedFingerprint != null
+                        && expectedFingerprint.trim().length() > 0
+                        ? expectedFingerprint.trim() : getFingerprint(vmId);
+
+                if (expected == null) {
+                    LOGGER.log(Level.INFO, "Trusting host key " + fingerprint
+                               + " of vm '" + vmName + "'");
+                    remember(vmId, fingerprint);
+                    return true;
+                }
+                if (expected.equalsIgnoreCase(fingerprint)) {
+                    remember(vmId, fingerprint);
+                    return true;
+                }
+                LOGGER.log(Level.WARNING, "Host key " + fingerprint + " of vm '"
+                        + vmName + "' at " + hostname + " does not match "
+                        + expected + ", refusing to connect");
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param vmId the ovirt id of the vm
+     * @return the fingerprint of the host key of the vm, or null if it was
+     * never seen
+     */
+    public synchronized String getFingerprint(String vmId) {
+        return fingerprints.get(vmId);
+    }
+
+    /**
+     * Forget the host key of a vm, e.g because it was deleted
+     *
+     * @param vmId the ovirt id of the vm
+     */
+    public void forget(String vmId) {
+        synchronized (this) {
+            if (fingerprints.remove(vmId) == null) {
+                return;
+            }
+        }
+        save();
+    }
+
+    private void remember(String vmId, String fingerprint) {
+        synchronized (this) {
+            if (fingerprint.equals(fingerprints.put(vmId, fingerprint))) {
+                return;
+            }
+        }
+        save();
+    }
+
+    private synchronized void save() {
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the host keys", e);
+        }
+    }
+}
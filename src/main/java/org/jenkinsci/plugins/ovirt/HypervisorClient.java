@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HypervisorClient is how the plugin asks things of an ovirt server, or
+ * tells it what to do with its vms. Every call returns right away with a
+ * future, instead of blocking on a REST request, so that the caching,
+ * batching and the threads the requests run on can be decided in one place.
+ *
+ * The futures of the calls about a vm which does not exist fail with an
+ * IllegalStateException.
+ *
+ * @see SdkHypervisorClient
+ * @see InMemoryHypervisorClient
+ */
+public interface HypervisorClient {
+
+    /**
+     * @return future of all the vms, in our cluster if it is specified
+     */
+    ListenableFuture<List<VMInfo>> list();
+
+    /**
+     * @param vmName the vm name
+     * @return future of the vm, with its current state, or of null if
+     * there is no such vm
+     */
+    ListenableFuture<VMInfo> get(String vmName);
+
+    /**
+     * Get the current state of many vms at once.
+     *
+     * @param vmNames the vm names
+     * @return future of the state by vm name, e.g 'up'. Vms not found are
+     * not in the map.
+     */
+    ListenableFuture<Map<String, String>> status(Collection<String> vmNames);
+
+    /**
+     * @param vmName the vm to start
+     * @return future completed once the ovirt server accepted to start it
+     */
+    ListenableFuture<Void> start(String vmName);
+
+    /**
+     * @param vmName the vm to shut down
+     * @return future completed once the ovirt server accepted to shut it
+     * down
+     */
+    ListenableFuture<Void> shutdown(String vmName);
+
+    /**
+     * Revert a vm, which must be down, to one of its snapshots.
+     *
+     * @param vmName the vm name
+     * @param snapshotDescription the description of the snapshot
+     * @return future completed once the ovirt server accepted to restore
+     * the snapshot
+     */
+    ListenableFuture<Void> restore(String vmName, String snapshotDescription);
+
+    /**
+     * @param vmName the vm name
+     * @return future of the ip addresses reported by the guest agent of the
+     * vm, empty if it reports none
+     */
+    ListenableFuture<List<String>> guestInfo(String vmName);
+}
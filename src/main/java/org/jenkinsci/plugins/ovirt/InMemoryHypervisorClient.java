@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * InMemoryHypervisorClient is a HypervisorClient whose vms only exist in
+ * memory, e.g to try out code using a HypervisorClient without an ovirt
+ * server. The calls complete right away, and so do the vm transitions: a
+ * started vm is 'up', a vm shut down is 'down'.
+ */
+public class InMemoryHypervisorClient implements HypervisorClient {
+
+    private static final class Entry {
+        private final String id = UUID.randomUUID().toString();
+        private final String name;
+        private final String description;
+        private final List<String> snapshots;
+        private String state;
+        private List<String> ips = new ArrayList<String>();
+
+        private Entry(String name, String state, String description,
+                      List<String> snapshots) {
+            this.name = name;
+            this.state = state;
+            this.description = description;
+            this.snapshots = snapshots;
+        }
+
+        private VMInfo toInfo() {
+            return new VMInfo(id, name, state, description);
+        }
+    }
+
+    /**
+     * key is the vm name
+     */
+    private final Map<String, Entry> vms = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Add a vm, or replace the one with that name.
+     *
+     * @param vmName the vm name
+     * @param state the state of the vm, e.g 'down'
+     * @param snapshotDescriptions the descriptions of its snapshots
+     */
+    public synchronized void addVM(String vmName, String state,
+                                   String... snapshotDescriptions) {
+        vms.put(vmName, new Entry(vmName, state.toLowerCase(), null,
+                Arrays.asList(snapshotDescriptions)));
+    }
+
+    /**
+     * @param vmName the vm name
+     * @param ips the ip addresses its guest agent reports
+     */
+    public synchronized void setIps(String vmName, String... ips) {
+        Entry vm = vms.get(vmName);
+        if (vm != null) {
+            vm.ips = new ArrayList<String>(Arrays.asList(ips));
+        }
+    }
+
+    /**
+     * @param vmName the vm to remove
+     */
+    public synchronized void removeVM(String vmName) {
+        vms.remove(vmName);
+    }
+
+    public synchronized ListenableFuture<List<VMInfo>> list() {
+        List<VMInfo> infos = new ArrayList<VMInfo>();
+        for (Entry vm : vms.values()) {
+            infos.add(vm.toInfo());
+        }
+        return Futures.immediateFuture(infos);
+    }
+
+    public synchronized ListenableFuture<VMInfo> get(String vmName) {
+        Entry vm = vms.get(vmName);
+        return Futures.immediateFuture(vm == null ? null : vm.toInfo());
+    }
+
+    public synchronized ListenableFuture<Map<String, String>> status(
+                                                Collection<String> vmNames) {
+        Map<String, String> states = new HashMap<String, String>();
+        for (String vmName : vmNames) {
+            Entry vm = vms.get(vmName);
+            if (vm != null) {
+                states.put(vmName, vm.state);
+            }
+        }
+        return Futures.immediateFuture(states);
+    }
+
+    public synchronized ListenableFuture<Void> start(String vmName) {
+        Entry vm = vms.get(vmName);
+        if (vm == null) {
+            return notFound(vmName);
+        }
+        if (!vm.state.equals("down")) {
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    "Cannot start VM '" + vmName + "': it is " + vm.state));
+        }
+        vm.state = "up";
+        return Futures.immediateFuture(null);
+    }
+
+    public synchronized ListenableFuture<Void> shutdown(String vmName) {
+        Entry vm = vms.get(vmName);
+        if (vm == null) {
+            return notFound(vmName);
+        }
+        vm.state = "down";
+        return Futures.immediateFuture(null);
+    }
+
+    public synchronized ListenableFuture<Void> restore(
+                                String vmName, String snapshotDescription) {
+        Entry vm = vms.get(vmName);
+        if (vm == null) {
+            return notFound(vmName);
+        }
+        if (!vm.snapshots.contains(snapshotDescription)) {
+            return Futures.immediateFailedFuture(new RuntimeException(
+                    "No snapshot '" + snapshotDescription + "' for vm '"
+                    + vmName + "' found"));
+        }
+        if (!vm.state.equals("down")) {
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    "Cannot restore VM '" + vmName + "': it is " + vm.state));
+        }
+        return Futures.immediateFuture(null);
+    }
+
+    public synchronized ListenableFuture<List<String>> guestInfo(
+                                                            String vmName) {
+        Entry vm = vms.get(vmName);
+        if (vm == null) {
+            return notFound(vmName);
+        }
+        List<String> ips = new ArrayList<String>();
+        if (vm.state.equals("up")) {
+            ips.addAll(vm.ips);
+        }
+        return Futures.immediateFuture(ips);
+    }
+
+    private static <T> ListenableFuture<T> notFound(String vmName) {
+        return Futures.immediateFailedFuture(new IllegalStateException(
+                "VM '" + vmName + "' not found"));
+    }
+}
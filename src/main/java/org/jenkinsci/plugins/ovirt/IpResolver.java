@@ -0,0 +1,331 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Computer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.entities.GuestInfo;
+import org.ovirt.engine.sdk.entities.IP;
+
+/**
+ * IpResolver finds the ip address of the vms being launched, for one
+ * hypervisor.
+ *
+ * Launchers register the vm they want the address of and get a future back.
+ * A single thread then asks the ovirt server for all those vms in one
+ * request, every 'pollMillis', and completes the futures of the vms whose
+ * guest agent reports an address. Meanwhile, the last address known for a vm
+ * is probed on the ssh port; the vm usually gets the same address when it
+ * boots again, and that way the launch doesn't wait for the guest agent to
+ * report it. The address may have gone to another machine though, so a
+ * probed address is only a hint: see isProbed, and resolveReported to wait
+ * for the guest agent instead.
+ *
+ * Like the VMStateWatcher, the thread only runs while somebody is waiting.
+ */
+public class IpResolver {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(IpResolver.class.getName());
+
+    /**
+     * How long to wait between two requests for the guest info of the vms
+     */
+    private static final long POLL_MILLIS = Long.getLong(
+            IpResolver.class.getName() + ".pollMillis", 2000);
+
+    /**
+     * How long to wait for the ssh port of a last known address to answer
+     */
+    private static final int PROBE_TIMEOUT_MILLIS = Integer.getInteger(
+            IpResolver.class.getName() + ".probeTimeoutMillis", 1000);
+
+    private static final int SSH_PORT = 22;
+
+    /**
+     * A launcher waiting for the address of a vm
+     */
+    private static final class Waiter {
+        private final String vmName;
+        private final long deadline;
+        private final boolean probe;
+        private final SettableFuture<String> future = SettableFuture.create();
+        private volatile boolean probing = false;
+
+        private Waiter(String vmName, long deadline, boolean probe) {
+            this.vmName = vmName;
+            this.deadline = deadline;
+            this.probe = probe;
+        }
+    }
+
+    private final OVirtHypervisor hypervisor;
+    private final List<Waiter> waiters = new LinkedList<Waiter>();
+    private Thread thread;
+
+    /**
+     * Last address found for each vm, by vm name
+     */
+    private final Map<String, String> lastKnown =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * Address last resolved by a probe for each vm, by vm name, until the
+     * guest agent reports it
+     */
+    private final ConcurrentMap<String, String> probed =
+            new ConcurrentHashMap<String, String>();
+
+    public IpResolver(OVirtHypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * Find the address of a vm. The future completes with the address, or
+     * fails with a TimeoutException once 'timeoutMillis' elapsed. Cancel it
+     * to stop waiting.
+     *
+     * @param vmName the vm name
+     * @param timeoutMillis how long to look for the address
+     * @return future completed with the address of the vm
+     */
+    public ListenableFuture<String> resolve(String vmName,
+                                            long timeoutMillis) {
+        return resolve(vmName, timeoutMillis, true);
+    }
+
+    /**
+     * Find the address of a vm as reported by its guest agent, without
+     * probing the last known one.
+     *
+     * @param vmName the vm name
+     * @param timeoutMillis how long to look for the address
+     * @return future completed with the address of the vm
+     */
+    public ListenableFuture<String> resolveReported(String vmName,
+                                                    long timeoutMillis) {
+        return resolve(vmName, timeoutMillis, false);
+    }
+
+    private ListenableFuture<String> resolve(String vmName,
+                                             long timeoutMillis,
+                                             boolean probe) {
+        Waiter waiter = new Waiter(vmName,
+                System.currentTimeMillis() + timeoutMillis, probe);
+        probeLastKnown(waiter);
+        synchronized (waiters) {
+            waiters.add(waiter);
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        pollLoop();
+                    }
+                }, "oVirt ip resolver for " + hypervisor.getHypervisorDescription());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return waiter.future;
+    }
+
+    /**
+     * @param vmName the vm name
+     * @return the last address found for the vm, or null if none
+     */
+    public String getLastKnown(String vmName) {
+        return lastKnown.get(vmName);
+    }
+
+    /**
+     * @param vmName the vm name
+     * @param ip an address resolved for the vm
+     * @return true if the address was only found by probing the last known
+     * one, and not reported by the guest agent
+     */
+    public boolean isProbed(String vmName, String ip) {
+        return ip.equals(probed.get(vmName));
+    }
+
+    /**
+     * Forget the address of a vm, e.g because it was deleted
+     *
+     * @param vmName the vm name
+     */
+    public void forget(String vmName) {
+        lastKnown.remove(vmName);
+        probed.remove(vmName);
+    }
+
+    /**
+     * Poll the ovirt server until nobody is waiting anymore.
+     */
+    private void pollLoop() {
+        try {
+            while (true) {
+                List<Waiter> current = takeWaiters();
+                if (current == null) {
+                    return;
+                }
+                poll(current);
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Ip resolver interrupted", e);
+            synchronized (waiters) {
+                for (Waiter waiter : waiters) {
+                    waiter.future.setException(e);
+                }
+                waiters.clear();
+                thread = null;
+            }
+        }
+    }
+
+    /**
+     * @return the waiters still waiting, or null if there are none left, in
+     * which case the polling thread must exit
+     */
+    private List<Waiter> takeWaiters() {
+        long now = System.currentTimeMillis();
+        synchronized (waiters) {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                Waiter waiter = it.next();
+                if (waiter.future.isDone()) {
+                    // resolved by a probe, or cancelled by the launcher
+                    it.remove();
+                } else if (waiter.deadline <= now) {
+                    it.remove();
+                    waiter.future.setException(new TimeoutException(
+                            "Couldn't find the ip address of VM '"
+                            + waiter.vmName + "'"));
+                }
+            }
+            if (waiters.isEmpty()) {
+                thread = null;
+                return null;
+            }
+            return new ArrayList<Waiter>(waiters);
+        }
+    }
+
+    /**
+     * Ask the ovirt server for the guest info of all the vms in one go, and
+     * complete the futures of the vms which have an address. The others get
+     * their last known address probed again.
+     */
+    private void poll(List<Waiter> current) {
+        Set<String> vmNames = new HashSet<String>();
+        for (Waiter waiter : current) {
+            vmNames.add(waiter.vmName);
+        }
+
+        Map<String, String> ips = new HashMap<String, String>();
+        try {
+            for (VM vm : hypervisor.findVMs(vmNames)) {
+                String ip = firstIp(vm);
+                if (ip != null) {
+                    ips.put(vm.getName(), ip);
+                }
+            }
+        } catch (Exception e) {
+            // try again next time
+            LOGGER.log(Level.WARNING, "Could not get the guest info of the"
+                    + " vms from " + hypervisor.getHypervisorDescription(), e);
+        }
+
+        for (Waiter waiter : current) {
+            String ip = ips.get(waiter.vmName);
+            if (ip != null) {
+                resolved(waiter, ip);
+            } else {
+                probeLastKnown(waiter);
+            }
+        }
+    }
+
+    /**
+     * @return the first address the guest agent reports for the vm, or
+     * null if the guest agent reports none yet
+     */
+    private static String firstIp(VM vm) {
+        GuestInfo info = vm.getGuestInfo();
+        if (info == null || info.getIps() == null) {
+            return null;
+        }
+        List<IP> ips = info.getIps().getIPs();
+        if (ips == null || ips.isEmpty()) {
+            return null;
+        }
+        return ips.get(0).getAddress();
+    }
+
+    private void resolved(Waiter waiter, String ip) {
+        lastKnown.put(waiter.vmName, ip);
+        probed.remove(waiter.vmName, ip);
+        if (waiter.future.set(ip)) {
+            LOGGER.log(Level.FINE, "VM '" + waiter.vmName + "' is at " + ip);
+        }
+    }
+
+    /**
+     * Check in the background whether the last known address of the vm
+     * accepts connections on the ssh port, and use it if it does.
+     */
+    private void probeLastKnown(final Waiter waiter) {
+        final String ip = lastKnown.get(waiter.vmName);
+        if (!waiter.probe || ip == null || waiter.probing) {
+            return;
+        }
+        waiter.probing = true;
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    if (!waiter.future.isDone() && isReachable(ip)) {
+                        probed.put(waiter.vmName, ip);
+                        if (waiter.future.set(ip)) {
+                            LOGGER.log(Level.FINE, "VM '" + waiter.vmName
+                                       + "' may be at " + ip);
+                        }
+                    }
+                } finally {
+                    waiter.probing = false;
+                }
+            }
+        });
+    }
+
+    private static boolean isReachable(String ip) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, SSH_PORT),
+                           PROBE_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
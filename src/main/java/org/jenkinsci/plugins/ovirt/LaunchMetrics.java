@@ -0,0 +1,336 @@
+package org.jenkinsci.plugins.ovirt;
+
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LaunchMetrics collects how long each phase of the launches takes, per
+ * hypervisor and per vm, and counts the calls to the ovirt servers and the
+ * failures. It is shown by the OVirtMetricsAction page.
+ *
+ * The phases are, in order:
+ *
+ * - resolve: finding the vm on the ovirt server
+ * - shutdown, revert, unlock, boot: getting the vm ready
+ * - ip: waiting for the address of the vm
+ * - tcp, banner, kex: connecting to its ssh server
+ * - auth: logging in
+ * - setup, copy, start: copying slave.jar and starting the channel
+ *
+ * Only the last samples of each phase are kept, fewer per vm than per
+ * hypervisor, so the percentiles follow the recent launches; the samples of
+ * a vm are dropped once it is deleted. Nothing is saved: the metrics start
+ * over when Jenkins restarts.
+ */
+public class LaunchMetrics {
+
+    /**
+     * How many durations are kept per phase and hypervisor
+     */
+    private static final int MAX_SAMPLES = Integer.getInteger(
+            LaunchMetrics.class.getName() + ".samples", 500);
+
+    /**
+     * How many durations are kept per phase and vm
+     */
+    private static final int MAX_VM_SAMPLES = Integer.getInteger(
+            LaunchMetrics.class.getName() + ".vmSamples", 50);
+
+    private static final LaunchMetrics INSTANCE = new LaunchMetrics();
+
+    private static final List<String> PHASE_ORDER = Arrays.asList(
+            "resolve", "shutdown", "revert", "unlock", "boot", "ip", "tcp",
+            "banner", "kex", "auth", "setup", "copy", "start");
+
+    /**
+     * The last durations of one phase, in milliseconds. The ring grows up to
+     * its cap as samples come, so that a vm launched a few times doesn't
+     * hold a full one.
+     */
+    private static final class Samples {
+        private final int cap;
+        private long[] ring = new long[8];
+        private int size = 0;
+        private int next = 0;
+
+        private Samples(int cap) {
+            this.cap = Math.max(cap, 1);
+        }
+
+        private synchronized void add(long millis) {
+            if (size == ring.length && ring.length < cap) {
+                // it never wrapped yet, the samples are in order
+                ring = Arrays.copyOf(ring, Math.min(ring.length * 2, cap));
+                next = size;
+            }
+            ring[next] = millis;
+            next = (next + 1) % ring.length;
+            size = Math.min(size + 1, ring.length);
+        }
+
+        private synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(ring, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * The percentiles of one phase, as shown
+     */
+    public static final class Stats {
+        private final String phase;
+        private final int count;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        private Stats(String phase, long[] sorted) {
+            this.phase = phase;
+            this.count = sorted.length;
+            this.p50 = percentile(sorted, 50);
+            this.p95 = percentile(sorted, 95);
+            this.p99 = percentile(sorted, 99);
+            this.max = sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            // nearest rank
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        private JSONObject toJSON() {
+            return new JSONObject().element("count", count)
+                    .element("p50", p50).element("p95", p95)
+                    .element("p99", p99).element("max", max);
+        }
+    }
+
+    /**
+     * Samples by phase, by "hypervisor description" or
+     * "hypervisor description / vm name"
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Samples>> samples =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Samples>>();
+
+    /**
+     * Counters by "hypervisor description / counter name"
+     */
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @return the LaunchMetrics
+     */
+    public static LaunchMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record how long a phase of the launch of a vm took.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param phase the phase, e.g 'boot'
+     * @param millis how long it took
+     */
+    public void record(String hypervisorDescription, String vmName,
+                       String phase, long millis) {
+        samplesOf(hypervisorDescription, phase, MAX_SAMPLES).add(millis);
+        samplesOf(hypervisorDescription + " / " + vmName, phase,
+                  MAX_VM_SAMPLES).add(millis);
+    }
+
+    /**
+     * Record all the phases timed by the timer.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param timer the timer of the launch
+     */
+    public void record(String hypervisorDescription, String vmName,
+                       PhaseTimer timer) {
+        for (Map.Entry<String, Long> phase : timer.getDurations().entrySet()) {
+            record(hypervisorDescription, vmName, phase.getKey(),
+                   phase.getValue());
+        }
+    }
+
+    /**
+     * Drop the samples of a vm, e.g once it is deleted, so that the generated
+     * vms don't pile up. They still count in the ones of its hypervisor.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     */
+    public void forget(String hypervisorDescription, String vmName) {
+        samples.remove(hypervisorDescription + " / " + vmName);
+    }
+
+    /**
+     * Count a call to the ovirt server.
+     *
+     * @param hypervisorDescription the hypervisor called
+     * @param failed whether the call failed
+     */
+    public void countCall(String hypervisorDescription, boolean failed) {
+        counterOf(hypervisorDescription, "restCalls").incrementAndGet();
+        if (failed) {
+            counterOf(hypervisorDescription, "restFailures").incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a failed launch.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     */
+    public void countLaunchFailure(String hypervisorDescription) {
+        counterOf(hypervisorDescription, "launchFailures").incrementAndGet();
+    }
+
+    /**
+     * @return the hypervisors and vms with samples, sorted, e.g
+     * "hypervisor" and "hypervisor / vm"
+     */
+    public List<String> getKeys() {
+        List<String> keys = new ArrayList<String>(samples.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * @param key a hypervisor description, or "hypervisor / vm"
+     * @return the stats of each phase, in launch order
+     */
+    public List<Stats> getStats(String key) {
+        List<Stats> stats = new ArrayList<Stats>();
+        Map<String, Samples> phases = samples.get(key);
+        if (phases == null) {
+            return stats;
+        }
+        for (String phase : sortedPhases(phases.keySet())) {
+            stats.add(new Stats(phase, phases.get(phase).sorted()));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the counters, by "hypervisor description / counter name"
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * @return all the metrics, as served by the JSON endpoint
+     */
+    public JSONObject toJSON() {
+        JSONObject phases = new JSONObject();
+        for (String key : getKeys()) {
+            JSONObject stats = new JSONObject();
+            for (Stats phase : getStats(key)) {
+                stats.element(phase.getPhase(), phase.toJSON());
+            }
+            phases.element(key, stats);
+        }
+        return new JSONObject().element("phases", phases)
+                               .element("counters", getCounters());
+    }
+
+    private Samples samplesOf(String key, String phase, int cap) {
+        ConcurrentMap<String, Samples> phases = samples.get(key);
+        if (phases == null) {
+            ConcurrentMap<String, Samples> created =
+                    new ConcurrentHashMap<String, Samples>();
+            phases = samples.putIfAbsent(key, created);
+            if (phases == null) {
+                phases = created;
+            }
+        }
+        Samples found = phases.get(phase);
+        if (found == null) {
+            Samples created = new Samples(cap);
+            found = phases.putIfAbsent(phase, created);
+            if (found == null) {
+                found = created;
+            }
+        }
+        return found;
+    }
+
+    private AtomicLong counterOf(String hypervisorDescription, String name) {
+        String key = hypervisorDescription + " / " + name;
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the phases in launch order, unknown ones last
+     */
+    private static List<String> sortedPhases(Set<String> phases) {
+        List<String> sorted = new ArrayList<String>();
+        for (String phase : PHASE_ORDER) {
+            if (phases.contains(phase)) {
+                sorted.add(phase);
+            }
+        }
+        for (String phase : new TreeSet<String>(phases)) {
+            if (!PHASE_ORDER.contains(phase)) {
+                sorted.add(phase);
+            }
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Use how long the vm usually takes to boot or shutdown: the first check
+ * is done a bit before the median of the recorded durations, then the vm
+ * is checked with a short exponential backoff. Until some durations are
+ * recorded for the vm, it behaves as an exponential backoff from 1 second.
+ *
+ * @see VMTimingHistory
+ */
+public class LearnedWaitStrategy extends WaitStrategy {
+
+    /**
+     * First check at this fraction of the median duration
+     */
+    private static final double FIRST_CHECK_RATIO = 0.9;
+
+    private final int timeoutSec;
+
+    @DataBoundConstructor
+    public LearnedWaitStrategy(int timeoutSec) {
+        this.timeoutSec = timeoutSec;
+    }
+
+    public int getTimeoutSec() {
+        return timeoutSec;
+    }
+
+    @Override
+    public WaitSchedule newSchedule(String hypervisorDescription,
+                                    String vmName,
+                                    Transition transition) {
+        long timeout = TimeUnit.SECONDS.toMillis(timeoutSec);
+        long median = VMTimingHistory.get()
+                .median(hypervisorDescription, vmName, transition);
+
+        if (median < 0) {
+            return ExponentialBackoffWaitStrategy.schedule(
+                    0, 1000, TimeUnit.SECONDS.toMillis(30), 2, timeout);
+        }
+        // past the median, check often: the vm should be there any time now
+        long interval = Math.max(median / 20, 500);
+        return ExponentialBackoffWaitStrategy.schedule(
+                (long) (median * FIRST_CHECK_RATIO),
+                interval, Math.max(median / 4, interval), 1.5, timeout);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<WaitStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Learned from previous boot/shutdown times";
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connect OVirtCloudSlave nodes as soon as they are created, and terminate
+ * them once they have been idle for 'idleMinutes'.
+ */
+public class OVirtCloudRetentionStrategy extends RetentionStrategy<SlaveComputer> {
+
+    private final int idleMinutes;
+
+    @DataBoundConstructor
+    public OVirtCloudRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @Override
+    public long check(SlaveComputer computer) {
+        if (!(computer.getNode() instanceof OVirtCloudSlave)) {
+            return 1;
+        }
+        OVirtCloudSlave slave = (OVirtCloudSlave) computer.getNode();
+        if (computer.isIdle() && !computer.isConnecting()
+                && !slave.isTerminating()) {
+            long idle = System.currentTimeMillis()
+                        - computer.getIdleStartMilliseconds();
+            if (idle > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+                slave.terminate();
+            }
+        }
+        return 1;
+    }
+
+    @Override
+    public void start(SlaveComputer computer) {
+        computer.connect(false);
+    }
+
+    @Extension
+    public static final class DescriptorImpl
+                        extends Descriptor<RetentionStrategy<?>> {
+        @Override
+        public String getDisplayName() {
+            return "Delete the ovirt vm when idle";
+        }
+    }
+}
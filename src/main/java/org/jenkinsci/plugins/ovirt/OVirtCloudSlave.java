@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * OVirtCloudSlave is a node whose vm was created by OVirtHypervisor from an
+ * OVirtTemplate. Unlike OVirtVMSlave, the vm belongs to the node: when the
+ * node is terminated, the vm is deleted.
+ *
+ * @see OVirtHypervisor#provision
+ */
+public class OVirtCloudSlave extends OVirtVMSlave {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(OVirtCloudSlave.class.getName());
+
+    static final long serialVersionUID = 1L;
+
+    private final String templateName;
+
+    private transient boolean terminating;
+
+    /**
+     * @param hypervisor the cloud which created the vm
+     * @param template the template the vm was created from
+     * @param virtualMachineName the name of the vm, also used as node name
+     *
+     * @throws Descriptor.FormException FormException
+     * @throws IOException IOException
+     */
+    public OVirtCloudSlave(OVirtHypervisor hypervisor, OVirtTemplate template,
+                           String virtualMachineName)
+            throws Descriptor.FormException, IOException {
+        this(virtualMachineName, "Created from template "
+                + template.getTemplateName(), template.getRemoteFS(),
+             String.valueOf(template.getNumExecutors()),
+             template.getLabelString(), template.getDelegateLauncher(),
+             new OVirtCloudRetentionStrategy(template.getIdleMinutes()),
+             hypervisor.getHypervisorDescription(), template.getTemplateName(),
+             virtualMachineName);
+    }
+
+    @DataBoundConstructor
+    public OVirtCloudSlave(String name, String nodeDescription,
+                           String remoteFS, String numExecutors,
+                           String labelString,
+                           ComputerLauncher delegateLauncher,
+                           RetentionStrategy retentionStrategy,
+                           String hypervisorDescription, String templateName,
+                           String virtualMachineName)
+            throws Descriptor.FormException, IOException {
+        super(name, nodeDescription, remoteFS, numExecutors, Mode.NORMAL,
+              labelString, delegateLauncher, retentionStrategy,
+              hypervisorDescription, "", 0, 0,
+              new ExponentialBackoffWaitStrategy(2, 30, 2, 600),
+              virtualMachineName,
+              Collections.<NodeProperty<?>>emptyList());
+        this.templateName = templateName;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * The node is managed by its cloud, so its configuration can't be
+     * changed from the UI.
+     *
+     * @return this node, unchanged
+     */
+    @Override
+    public Node reconfigure(StaplerRequest req, JSONObject form)
+                                            throws Descriptor.FormException {
+        return this;
+    }
+
+    /**
+     * @return true once terminate was called
+     */
+    public synchronized boolean isTerminating() {
+        return terminating;
+    }
+
+    /**
+     * Remove this node from Jenkins, and delete its vm in the background.
+     * The vm is not torn down after the disconnection, as it is deleted
+     * anyway. Only the first call does anything.
+     */
+    public void terminate() {
+        synchronized (this) {
+            if (terminating) {
+                return;
+            }
+            terminating = true;
+        }
+        String vmName = getVirtualMachineName();
+        if (getLauncher() instanceof OVirtVMLauncher) {
+            ((OVirtVMLauncher) getLauncher()).terminated();
+        }
+        TeardownQueue.get().cancel(getHypervisorDescription(), vmName);
+
+        try {
+            Computer computer = toComputer();
+            if (computer != null) {
+                computer.disconnect();
+            }
+            Jenkins.getInstance().removeNode(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not remove node " + getNodeName(), e);
+        }
+        OVirtHypervisor hypervisor =
+                OVirtHypervisor.find(getHypervisorDescription());
+        hypervisor.destroyVM(vmName);
+        VMLifecycle.forget(getHypervisorDescription(), vmName);
+        hypervisor.getIpResolver().forget(vmName);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends SlaveDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Slave VM created from an ovirt template";
+        }
+
+        /**
+         * These nodes are only created by OVirtHypervisor
+         *
+         * @return false
+         */
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+    }
+}
@@ -8,10 +8,16 @@ import java.io.IOException;
 import java.util.*;
 
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.util.FormValidation;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,6 +27,9 @@ import org.kohsuke.stapler.QueryParameter;
 import org.ovirt.engine.sdk.Api;
 import org.ovirt.engine.sdk.decorators.Cluster;
 import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.decorators.VMSnapshot;
+import org.ovirt.engine.sdk.entities.Action;
+import org.ovirt.engine.sdk.exceptions.ServerException;
 
 /**
  * OVirtHypervisor is used to provide a different communication model for
@@ -30,31 +39,103 @@ import org.ovirt.engine.sdk.decorators.VM;
  * @see <a href="http://javadoc.jenkins-ci.org/hudson/slaves/Cloud.html"></a>
  */
 public class OVirtHypervisor extends Cloud {
+    private static final Logger LOGGER =
+            Logger.getLogger(OVirtHypervisor.class.getName());
+
+    /**
+     * Maximum number of vm names sent in a single search query
+     */
+    private static final int SEARCH_BATCH_SIZE = 50;
+
+    /**
+     * How long the UI waits for something which was never loaded, before
+     * rendering without it
+     */
+    private static final long UI_MAX_WAIT_MILLIS = 5000;
+
+    /**
+     * How long the snapshot names shown in the UI are served before being
+     * reloaded
+     */
+    private static final int SNAPSHOT_NAMES_TTL_SECS = 60;
+
     private String ovirtURL;
     private String clusterName;
     private String username;
     private String password;
+    private int inventoryTTLSecs;
+    private int instanceCap;
+    private List<OVirtTemplate> templates;
+
+    private transient ApiPool apiPool;
+    private transient volatile Cluster cluster;
+    private transient VMInventory inventory;
+    private transient VMStateWatcher stateWatcher;
+    private transient IpResolver ipResolver;
+    private transient WarmPool warmPool;
+    private transient BatchLaunchCoordinator launchCoordinator;
+    private transient RefreshingCache<List<String>> snapshotNames;
+    private transient SnapshotIndex snapshotIndex;
+    private transient HypervisorClient client;
+    private transient volatile boolean searchUnsupported;
 
-    private transient Api api;
-    private transient Cluster cluster;
+    /**
+     * Number of vms being created, per template name
+     */
+    private transient Map<String, Integer> pendingProvisions;
+
+    /**
+     * Template name of the nodes created, by vm name, until the
+     * NodeProvisioner adds them to Jenkins
+     */
+    private transient Map<String, String> handedOver;
+
+    public OVirtHypervisor(final String name,
+                           final String ovirtURL,
+                           final String clusterName,
+                           final String username,
+                           final String password) {
+        this(name, ovirtURL, clusterName, username, password, 0);
+    }
+
+    public OVirtHypervisor(final String name,
+                           final String ovirtURL,
+                           final String clusterName,
+                           final String username,
+                           final String password,
+                           final int inventoryTTLSecs) {
+        this(name, ovirtURL, clusterName, username, password,
+             inventoryTTLSecs, 0, null);
+    }
 
     /**
      * @param name     Name of the OVirt Server
      * @param ovirtURL The ovirt server's API url
      * @param username The username of the user to login in the ovirt server
      * @param password The password of the user to login in the ovirt server
+     * @param inventoryTTLSecs How long (in seconds) the list of vms fetched
+     *                         from the ovirt server is cached. 0 disables it
+     * @param instanceCap Maximum number of vms created from all the templates
+     *                    together. 0 means no limit
+     * @param templates The templates used to create new nodes
      */
     @DataBoundConstructor
     public OVirtHypervisor(final String name,
                            final String ovirtURL,
                            final String clusterName,
                            final String username,
-                           final String password) {
+                           final String password,
+                           final int inventoryTTLSecs,
+                           final int instanceCap,
+                           final List<OVirtTemplate> templates) {
         super(name);
         this.ovirtURL = ovirtURL.trim();
         this.clusterName = clusterName.trim();
         this.username = username.trim();
         this.password = password.trim();
+        this.inventoryTTLSecs = inventoryTTLSecs;
+        this.instanceCap = instanceCap;
+        this.templates = templates;
     }
 
     /**
@@ -132,25 +213,441 @@ public class OVirtHypervisor extends Cloud {
         return password;
     }
 
+    public int getInventoryTTLSecs() {
+        return inventoryTTLSecs;
+    }
+
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    public List<OVirtTemplate> getTemplates() {
+        if (templates == null) {
+            return Collections.emptyList();
+        }
+        return templates;
+    }
+
+    /**
+     * Find the template to use to create nodes for that label
+     *
+     * @param label the label used
+     * @return the first template matching the label, or null
+     */
+    public OVirtTemplate getTemplate(Label label) {
+        for (OVirtTemplate template : getTemplates()) {
+            if (template.matches(label)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns true if this cloud is capable of provisioning new nodes for the
-     * given label. Right now we can't create a new node from this plugin
+     * given label, that is if one of its templates matches the label.
      *
      * @param label the label used
-     * @return false
+     * @return true if a template matches the label
      */
     @Override
     public boolean canProvision(Label label) {
-        return false;
+        return getTemplate(label) != null;
     }
 
     /**
-     * Provisions new nodes from this cloud. This plugin does not support
-     * this feature.
+     * Provisions new nodes from this cloud: vms are created from the template
+     * matching the label, in parallel, until the excess workload is covered
+     * or the instance caps are reached.
+     *
+     * @param label the label used
+     * @param excessWorkload how many executors are missing
+     * @return the nodes being created
      */
     @Override
     public Collection<PlannedNode> provision(Label label, int excessWorkload) {
-        throw new UnsupportedOperationException("Not supported yet");
+        List<PlannedNode> planned = new ArrayList<PlannedNode>();
+        final OVirtTemplate template = getTemplate(label);
+        if (template == null) {
+            return planned;
+        }
+
+        while (excessWorkload > 0) {
+            final String warmVMName = getWarmPool().take(template);
+            if (warmVMName != null) {
+                // the warm vm is no longer counted by the pool
+                addPendingInstance(template);
+            } else if (!reserveInstance(template)) {
+                break;
+            }
+
+            final String vmName = warmVMName != null ? warmVMName
+                                                     : template.newVMName();
+            LOGGER.log(Level.INFO, (warmVMName != null ? "Using warm vm "
+                                                       : "Creating vm ")
+                                   + vmName + " from template "
+                                   + template.getTemplateName());
+
+            Future<Node> node = Computer.threadPoolForRemoting.submit(
+                    new Callable<Node>() {
+                        public Node call() throws Exception {
+                            boolean created = false;
+                            try {
+                                if (warmVMName == null) {
+                                    createVMFromTemplate(vmName,
+                                            template.getTemplateName());
+                                }
+                                // added by the NodeProvisioner
+                                OVirtCloudSlave slave = new OVirtCloudSlave(
+                                        OVirtHypervisor.this, template, vmName);
+                                handOver(template, vmName);
+                                created = true;
+                                return slave;
+                            } finally {
+                                if (!created) {
+                                    releaseInstance(template);
+                                }
+                            }
+                        }
+                    });
+
+            planned.add(new PlannedNode(vmName, node,
+                                        template.getNumExecutors()));
+            excessWorkload -= template.getNumExecutors();
+        }
+        return planned;
+    }
+
+    /**
+     * Get the coordinator which gets the vms of the nodes being launched on
+     * this hypervisor ready, in batches.
+     *
+     * @return the BatchLaunchCoordinator object
+     */
+    public synchronized BatchLaunchCoordinator getLaunchCoordinator() {
+        if (launchCoordinator == null) {
+            launchCoordinator = new BatchLaunchCoordinator(this);
+        }
+        return launchCoordinator;
+    }
+
+    /**
+     * Get the warm pool of this hypervisor, which keeps vms of its templates
+     * up and ready to be handed out.
+     *
+     * @return the WarmPool object
+     */
+    public synchronized WarmPool getWarmPool() {
+        if (warmPool == null) {
+            warmPool = new WarmPool(this);
+        }
+        return warmPool;
+    }
+
+    /**
+     * Count a new vm for the template, unless the instance cap of the
+     * template or of this cloud is reached. The vms counted are the
+     * OVirtCloudSlave nodes of this cloud, the vms of the warm pool, plus
+     * the vms being created or waiting to be added as nodes.
+     *
+     * @param template the template the vm will be created from
+     * @return true if the vm can be created
+     */
+    synchronized boolean reserveInstance(OVirtTemplate template) {
+        if (pendingProvisions == null) {
+            pendingProvisions = new HashMap<String, Integer>();
+        }
+
+        int total = getWarmPool().size();
+        int forTemplate = getWarmPool().size(template);
+        for (Integer pending : pendingProvisions.values()) {
+            total += pending;
+        }
+        Integer pending = pendingProvisions.get(template.getTemplateName());
+        forTemplate += pending == null ? 0 : pending;
+
+        if (handedOver != null) {
+            for (Iterator<Map.Entry<String, String>> it =
+                         handedOver.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, String> node = it.next();
+                if (Jenkins.getInstance().getNode(node.getKey()) != null) {
+                    // counted with the nodes below from now on
+                    it.remove();
+                    continue;
+                }
+                ++total;
+                if (template.getTemplateName().equals(node.getValue())) {
+                    ++forTemplate;
+                }
+            }
+        }
+
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof OVirtCloudSlave) {
+                OVirtCloudSlave slave = (OVirtCloudSlave) node;
+                if (getHypervisorDescription()
+                        .equals(slave.getHypervisorDescription())) {
+                    ++total;
+                    if (template.getTemplateName()
+                            .equals(slave.getTemplateName())) {
+                        ++forTemplate;
+                    }
+                }
+            }
+        }
+
+        if ((instanceCap > 0 && total >= instanceCap)
+                || (template.getInstanceCap() > 0
+                    && forTemplate >= template.getInstanceCap())) {
+            return false;
+        }
+        addPendingInstance(template);
+        return true;
+    }
+
+    /**
+     * Count a new vm for the template, without checking the instance caps
+     *
+     * @param template the template the vm is created from
+     */
+    private synchronized void addPendingInstance(OVirtTemplate template) {
+        if (pendingProvisions == null) {
+            pendingProvisions = new HashMap<String, Integer>();
+        }
+        Integer pending = pendingProvisions.get(template.getTemplateName());
+        pendingProvisions.put(template.getTemplateName(),
+                              (pending == null ? 0 : pending) + 1);
+    }
+
+    /**
+     * The vm reserved with reserveInstance is now a node, which goes on
+     * being counted until the NodeProvisioner adds it
+     *
+     * @param template the template the vm was created from
+     * @param vmName the vm, which names the node
+     */
+    private synchronized void handOver(OVirtTemplate template, String vmName) {
+        releaseInstance(template);
+        if (handedOver == null) {
+            handedOver = new HashMap<String, String>();
+        }
+        handedOver.put(vmName, template.getTemplateName());
+    }
+
+    /**
+     * The vm reserved with reserveInstance is either a node now, or failed
+     * to be created
+     *
+     * @param template the template the vm was created from
+     */
+    synchronized void releaseInstance(OVirtTemplate template) {
+        Integer pending = pendingProvisions.get(template.getTemplateName());
+        if (pending != null && pending > 1) {
+            pendingProvisions.put(template.getTemplateName(), pending - 1);
+        } else {
+            pendingProvisions.remove(template.getTemplateName());
+        }
+    }
+
+    /**
+     * Create a new vm from a template, in the cluster if specified, or else
+     * in the cluster of the template. The vm is created down, and stays
+     * image locked until its disks are created.
+     *
+     * @param vmName the name of the new vm
+     * @param templateName the ovirt template to use
+     * @return the new vm
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public VM createVMFromTemplate(String vmName, String templateName)
+                                                            throws Exception {
+        return createVMFromTemplate(vmName, templateName, null);
+    }
+
+    /**
+     * Create a new vm from a template, with a description.
+     *
+     * @param vmName the name of the new vm
+     * @param templateName the ovirt template to use
+     * @param description the description of the vm, or null
+     * @return the new vm
+     * @throws Exception some issue with the ovirt server communication
+     * @see #createVMFromTemplate(String, String)
+     */
+    public VM createVMFromTemplate(String vmName, final String templateName,
+                                   String description) throws Exception {
+        org.ovirt.engine.sdk.entities.VM params =
+                new org.ovirt.engine.sdk.entities.VM();
+        params.setName(vmName);
+        if (description != null) {
+            params.setDescription(description);
+        }
+
+        org.ovirt.engine.sdk.entities.Template template =
+                new org.ovirt.engine.sdk.entities.Template();
+        template.setName(templateName);
+        params.setTemplate(template);
+
+        org.ovirt.engine.sdk.entities.Cluster vmCluster;
+        if (isClusterSpecified()) {
+            vmCluster = new org.ovirt.engine.sdk.entities.Cluster();
+            vmCluster.setName(clusterName);
+        } else {
+            vmCluster = getApiPool().execute(
+                    new ApiPool.ApiCall<org.ovirt.engine.sdk.entities.Cluster>() {
+                        public org.ovirt.engine.sdk.entities.Cluster call(Api api)
+                                                            throws Exception {
+                            return api.getTemplates().get(templateName)
+                                      .getCluster();
+                        }
+                    });
+        }
+        params.setCluster(vmCluster);
+
+        final org.ovirt.engine.sdk.entities.VM vmParams = params;
+        VM vm = getApiPool().execute(new ApiPool.ApiCall<VM>() {
+            public VM call(Api api) throws Exception {
+                return api.getVMs().add(vmParams);
+            }
+        });
+        getInventory().put(vm);
+        return vm;
+    }
+
+    /**
+     * Power off and delete a vm, in the background.
+     *
+     * @param vmName the vm to delete
+     * @return the future of the deletion
+     */
+    public Future<?> destroyVM(final String vmName) {
+        return Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                VM vm = getFreshVM(vmName);
+                if (vm == null) {
+                    return null;
+                }
+                if (!vm.getStatus().getState().equalsIgnoreCase("down")) {
+                    stopVM(vm.getId());
+                    getStateWatcher().await(vmName,
+                            ExponentialBackoffWaitStrategy.schedule(
+                                    1000, 1000, 10000, 2, 300000),
+                            "down").get();
+                }
+                executeOnVM(vm.getId(), new VMCall<Void>() {
+                    public Void call(VM vm) throws Exception {
+                        vm.delete();
+                        return null;
+                    }
+                });
+                getInventory().invalidate();
+                HostKeyStore.get().forget(vm.getId());
+                LaunchMetrics.get().forget(getHypervisorDescription(), vmName);
+                VMTimingHistory.get().forget(getHypervisorDescription(), vmName);
+                LOGGER.log(Level.INFO, "Deleted vm " + vmName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A call to make on a vm with a session of the pool
+     */
+    public interface VMCall<T> {
+        T call(VM vm) throws Exception;
+    }
+
+    /**
+     * Make a call on a vm with a session of the pool, e.g to start it. The
+     * VM objects keep using the session they were fetched with, which is
+     * back in the pool once they are fetched, so the vm is fetched again by
+     * id with the session the call is made with. Like the other calls made
+     * through the pool, the call is retried once if the session expired.
+     *
+     * @param vmId the vm id
+     * @param call what to do with the vm
+     * @param <T> what the call returns
+     * @return what the call returned
+     * @throws Exception the vm no longer exists, or some issue with the
+     * ovirt server communication
+     */
+    public <T> T executeOnVM(final String vmId, final VMCall<T> call)
+                                                            throws Exception {
+        return getApiPool().execute(new ApiPool.ApiCall<T>() {
+            public T call(Api api) throws Exception {
+                VM vm = api.getVMs().getById(vmId);
+                if (vm == null) {
+                    throw new IllegalStateException("VM with id " + vmId
+                                                    + " not found");
+                }
+                return call.call(vm);
+            }
+        });
+    }
+
+    /**
+     * @param vmId the vm to power on
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public void startVM(String vmId) throws Exception {
+        executeOnVM(vmId, new VMCall<Void>() {
+            public Void call(VM vm) throws Exception {
+                vm.start(newAction());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param vmId the vm to shut down gracefully
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public void shutdownVM(String vmId) throws Exception {
+        executeOnVM(vmId, new VMCall<Void>() {
+            public Void call(VM vm) throws Exception {
+                vm.shutdown(newAction());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param vmId the vm to power off
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public void stopVM(String vmId) throws Exception {
+        executeOnVM(vmId, new VMCall<Void>() {
+            public Void call(VM vm) throws Exception {
+                vm.stop(newAction());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Revert a vm, which must be down, to the snapshot with that
+     * description, found through the snapshot index.
+     *
+     * @param vmId the vm id
+     * @param snapshotDescription the description of the snapshot
+     * @throws Exception the vm has no such snapshot, or some issue with the
+     * ovirt server communication
+     */
+    public void restoreSnapshot(String vmId, final String snapshotDescription)
+                                                            throws Exception {
+        executeOnVM(vmId, new VMCall<Void>() {
+            public Void call(VM vm) throws Exception {
+                getSnapshotIndex().find(vm, snapshotDescription)
+                                  .restore(newAction());
+                return null;
+            }
+        });
+    }
+
+    private static Action newAction() {
+        Action action = new Action();
+        action.setVm(new org.ovirt.engine.sdk.entities.VM());
+        return action;
     }
 
     /**
@@ -178,71 +675,531 @@ public class OVirtHypervisor extends Cloud {
     }
 
     /**
-     * Get the api object. Will create a new Api object if it has not been
-     * initialized yet.
+     * Get the pool of sessions to the ovirt server. Will create it if it has
+     * not been initialized yet.
+     *
+     * @return ApiPool object for this hypervisor
+     */
+    public synchronized ApiPool getApiPool() {
+        if (apiPool == null) {
+            apiPool = new ApiPool(ovirtURL, username, password,
+                                  getHypervisorDescription());
+        }
+        return apiPool;
+    }
+
+    /**
+     * Get the vm inventory cache of this hypervisor. It is created the first
+     * time it is needed, since it is not persisted with this object.
      *
-     * @return Api object for this hypervisor
-     * null if creation of Api object throws an exception
+     * @return the VMInventory object
      */
-    public Api getAPI() {
+    public synchronized VMInventory getInventory() {
+        if (inventory == null) {
+            inventory = new VMInventory(new VMInventory.Loader() {
+                public List<VM> load() throws Exception {
+                    return loadVMs();
+                }
+            }, inventoryTTLSecs);
+        }
+        return inventory;
+    }
+
+    /**
+     * Get the vm names for the UI, sorted. They come from the inventory
+     * cache, even if it expired, so that pages render right away.
+     *
+     * @return vm names, empty if they could not be loaded in time
+     */
+    public List<String> peekVMNames() {
         try {
-            if (api == null) {
-                api = new Api(ovirtURL,
-                        username,
-                        password,
-                        true);
+            return getInventory().peekNames(UI_MAX_WAIT_MILLIS);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not get the vm names of "
+                                      + getHypervisorDescription(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Search the vm names for the UI, e.g as the user types.
+     *
+     * @param filter only the names containing this, ignoring case
+     * @param offset how many matching names to skip
+     * @param max how many matching names to return at most
+     * @return sorted vm names matching the filter
+     */
+    public List<String> searchVMNames(String filter, int offset, int max) {
+        String lowerFilter = filter == null ? "" : filter.trim().toLowerCase();
+        List<String> matches = new ArrayList<String>();
+        int skipped = 0;
+
+        for (String vmName : peekVMNames()) {
+            if (matches.size() >= max) {
+                break;
+            }
+            if (vmName.toLowerCase().contains(lowerFilter)) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    matches.add(vmName);
+                }
             }
-            return api;
+        }
+        return matches;
+    }
+
+    /**
+     * Get the snapshot names of a vm for the UI. They are cached, and served
+     * even once expired while they are reloaded, so that pages render right
+     * away.
+     *
+     * @param vmName the vm name
+     * @return snapshot names, empty if they could not be loaded in time
+     */
+    public List<String> peekSnapshotNames(String vmName) {
+        try {
+            List<String> names =
+                    getSnapshotNamesCache().get(vmName, UI_MAX_WAIT_MILLIS);
+            return names == null ? Collections.<String>emptyList() : names;
         } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            LOGGER.log(Level.WARNING, "Could not get the snapshots of "
+                                      + vmName, e);
+            return Collections.emptyList();
         }
     }
 
     /**
-     * Get the VM object of a vm from the vm name string.
+     * Get the index of the snapshots the launchers revert their vm to.
+     *
+     * @return the SnapshotIndex object
+     */
+    public synchronized SnapshotIndex getSnapshotIndex() {
+        if (snapshotIndex == null) {
+            snapshotIndex = new SnapshotIndex();
+        }
+        return snapshotIndex;
+    }
+
+    private synchronized RefreshingCache<List<String>> getSnapshotNamesCache() {
+        if (snapshotNames == null) {
+            snapshotNames = new RefreshingCache<List<String>>(
+                    new RefreshingCache.Loader<List<String>>() {
+                        public List<String> load(String vmName)
+                                                            throws Exception {
+                            VM vm = getVM(vmName);
+                            if (vm == null) {
+                                throw new IllegalStateException("VM '"
+                                        + vmName + "' not found");
+                            }
+                            return listSnapshotNames(vm.getId());
+                        }
+                    }, SNAPSHOT_NAMES_TTL_SECS);
+        }
+        return snapshotNames;
+    }
+
+    private List<String> listSnapshotNames(String vmId) throws Exception {
+        return executeOnVM(vmId, new VMCall<List<String>>() {
+            public List<String> call(VM vm) throws Exception {
+                List<String> names = new ArrayList<String>();
+                for (VMSnapshot snapshot : vm.getSnapshots().list()) {
+                    names.add(snapshot.getDescription());
+                }
+                return names;
+            }
+        });
+    }
+
+    /**
+     * Get the state watcher of this hypervisor, used by the launchers to
+     * wait for their vm to reach a given state.
+     *
+     * @return the VMStateWatcher object
+     */
+    public synchronized VMStateWatcher getStateWatcher() {
+        if (stateWatcher == null) {
+            stateWatcher = new VMStateWatcher(this);
+        }
+        return stateWatcher;
+    }
+
+    /**
+     * Get the ip resolver of this hypervisor, used by the launchers to find
+     * the address of their vm.
+     *
+     * @return the IpResolver object
+     */
+    public synchronized IpResolver getIpResolver() {
+        if (ipResolver == null) {
+            ipResolver = new IpResolver(this);
+        }
+        return ipResolver;
+    }
+
+    /**
+     * Get the client through which the plugin talks to the ovirt server. It
+     * is created the first time it is needed, since it is not persisted with
+     * this object.
+     *
+     * @return the HypervisorClient object
+     */
+    public synchronized HypervisorClient getClient() {
+        if (client == null) {
+            client = createClient();
+        }
+        return client;
+    }
+
+    /**
+     * @return a new client talking to the ovirt server through the sdk
+     */
+    protected HypervisorClient createClient() {
+        return new SdkHypervisorClient(this);
+    }
+
+    /**
+     * Get the current state of many vms at once, e.g 'up', 'down', etc.
+     * Vms not found are not in the map returned.
+     *
+     * @param vmNames the names of the vms
+     * @return map with the vm name as key, and its state as value
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public Map<String, String> getVMStates(Collection<String> vmNames)
+                                                            throws Exception {
+        Map<String, String> states = new HashMap<String, String>();
+        for (VM vm : findVMs(vmNames)) {
+            states.put(vm.getName(), vm.getStatus().getState());
+        }
+        return states;
+    }
+
+    /**
+     * Ask the ovirt server for the latest VM objects of many vms at once.
+     * The names are sent in as few search queries as possible; engines that
+     * reject them get the whole inventory reloaded instead.
+     *
+     * @param vmNames the names of the vms
+     * @return the vms found
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public List<VM> findVMs(Collection<String> vmNames) throws Exception {
+        List<VM> vms = new ArrayList<VM>();
+
+        if (!searchUnsupported) {
+            try {
+                List<String> names = new ArrayList<String>(vmNames);
+                for (int i = 0; i < names.size(); i += SEARCH_BATCH_SIZE) {
+                    List<String> batch = names.subList(i,
+                            Math.min(i + SEARCH_BATCH_SIZE, names.size()));
+                    for (VM vm : searchVMs(namesQuery(batch))) {
+                        if (vmNames.contains(vm.getName())) {
+                            getInventory().put(vm);
+                            vms.add(vm);
+                        }
+                    }
+                }
+                return vms;
+            } catch (Exception e) {
+                if (!isSearchRejected(e)) {
+                    throw e;
+                }
+                searchRejected(e);
+                vms.clear();
+            }
+        }
+
+        getInventory().invalidate();
+        for (VM vm : getInventory().list()) {
+            if (vmNames.contains(vm.getName())) {
+                vms.add(vm);
+            }
+        }
+        return vms;
+    }
+
+    /**
+     * Get the VM object of a vm from the vm name string. If the inventory
+     * cache knows about the vm, it is returned from there; otherwise only
+     * that vm is searched for on the ovirt server. In both cases its status
+     * may be out of date; use getFreshVM if the current status is needed.
      *
      * @param vm: vm name in the ovirt server
      * @return the VM object
      */
     public VM getVM(String vm) {
-        for (VM vmi : getVMs()) {
-            if (vmi.getName().equals(vm)) {
-                return vmi;
+        VM cached = getInventory().peekByName(vm);
+        if (cached != null) {
+            return cached;
+        }
+        return findVM(vm);
+    }
+
+    /**
+     * Get the latest VM object of a vm from the ovirt server, with its
+     * current status. Only that vm is fetched, and the inventory cache is
+     * updated with it.
+     *
+     * @param vm: vm name in the ovirt server
+     * @return the VM object, or null if not found
+     */
+    public VM getFreshVM(String vm) {
+        VM cached = getInventory().peekByName(vm);
+        if (cached == null) {
+            // the search result is fresh already
+            return findVM(vm);
+        }
+        VM fresh = findVMById(cached.getId());
+        if (fresh == null) {
+            // the vm may have been re-created with the same name
+            return findVM(vm);
+        }
+        return fresh;
+    }
+
+    /**
+     * Ask the ovirt server for the vm with that name, in our cluster if it is
+     * specified. Engines that reject the search query get the vm from the
+     * inventory instead.
+     *
+     * @param vm: vm name in the ovirt server
+     * @return the VM object, or null if not found
+     */
+    public VM findVM(String vm) {
+        if (vm == null) {
+            return null;
+        }
+
+        if (!searchUnsupported) {
+            List<VM> found;
+            try {
+                found = searchVMs(nameQuery(vm));
+            } catch (Exception e) {
+                if (isSearchRejected(e)) {
+                    searchRejected(e);
+                } else {
+                    LOGGER.log(Level.WARNING, "Could not search vm " + vm
+                            + ", trying the inventory instead", e);
+                }
+                found = null;
+            }
+
+            if (found != null) {
+                for (VM vmi : found) {
+                    // the search may match more than the exact name
+                    if (vm.equals(vmi.getName())) {
+                        getInventory().put(vmi);
+                        return vmi;
+                    }
+                }
+                return null;
             }
         }
-        return null;
+
+        try {
+            return getInventory().getByName(vm);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not get vm " + vm, e);
+            return null;
+        }
+    }
+
+    /**
+     * Ask the ovirt server for the vm with that id.
+     *
+     * @param id: vm id in the ovirt server
+     * @return the VM object, or null if not found
+     */
+    public VM findVMById(final String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            VM vm = getApiPool().execute(new ApiPool.ApiCall<VM>() {
+                public VM call(Api api) throws Exception {
+                    return api.getVMs().getById(id);
+                }
+            });
+            getInventory().put(vm);
+            return vm;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not get vm with id " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Send a search query to the ovirt server, e.g 'name=foo and cluster=bar'
+     *
+     * @param query the search expression
+     * @return the vms matching the query
+     * @throws Exception the ovirt server rejected the query
+     */
+    private List<VM> searchVMs(final String query) throws Exception {
+        return getApiPool().execute(new ApiPool.ApiCall<List<VM>>() {
+            public List<VM> call(Api api) throws Exception {
+                return api.getVMs().list(query, false, null);
+            }
+        });
+    }
+
+    /**
+     * Tell whether the ovirt server rejected a search query, as opposed to
+     * failing to answer it, e.g because it is overloaded or the connection
+     * broke, which may work next time.
+     *
+     * @param e what the search query failed with
+     * @return true if the vms should be listed instead
+     */
+    private static boolean isSearchRejected(Exception e) {
+        if (e instanceof ServerException
+                && ((ServerException) e).getCode() == 400) {
+            return true;
+        }
+        return isSearchUnsupported(e);
+    }
+
+    /**
+     * Tell whether the ovirt server does not support search queries at all.
+     * A 400 only means that this one query was bad.
+     *
+     * @param e what the search query failed with
+     * @return true if search queries should no longer be sent
+     */
+    private static boolean isSearchUnsupported(Exception e) {
+        if (e instanceof ServerException) {
+            int code = ((ServerException) e).getCode();
+            return code == 404 || code == 405 || code == 501;
+        }
+        return e instanceof UnsupportedOperationException;
+    }
+
+    private void searchRejected(Exception e) {
+        if (isSearchUnsupported(e)) {
+            LOGGER.log(Level.INFO, "Search queries not supported by "
+                    + ovirtURL + ", listing all the vms instead", e);
+            searchUnsupported = true;
+        } else {
+            LOGGER.log(Level.WARNING, "Search query rejected by " + ovirtURL
+                    + ", listing all the vms this time", e);
+        }
+    }
+
+    /**
+     * @return all the vms of the ovirt server
+     * @throws Exception some issue with the ovirt server communication
+     */
+    private List<VM> listAllVMs() throws Exception {
+        return getApiPool().execute(new ApiPool.ApiCall<List<VM>>() {
+            public List<VM> call(Api api) throws Exception {
+                return api.getVMs().list();
+            }
+        });
+    }
+
+    /**
+     * @param vm: vm name
+     * @return the search expression matching that vm in our cluster
+     */
+    private String nameQuery(String vm) {
+        return "name=" + quote(vm) + clusterQuery(" and ");
+    }
+
+    /**
+     * Vm names are unique in an ovirt server, so there is no need to
+     * restrict this query to our cluster
+     *
+     * @param vmNames: vm names
+     * @return the search expression matching all those vms
+     */
+    private static String namesQuery(List<String> vmNames) {
+        StringBuilder query = new StringBuilder();
+        for (String vmName : vmNames) {
+            if (query.length() > 0) {
+                query.append(" or ");
+            }
+            query.append("name=").append(quote(vmName));
+        }
+        return query.toString();
+    }
+
+    /**
+     * @param prefix prepended to the expression if there is one
+     * @return the search expression restricting the vms to our cluster,
+     * or an empty string if no cluster is specified
+     */
+    private String clusterQuery(String prefix) {
+        if (!isClusterSpecified()) {
+            return "";
+        }
+        return prefix + "cluster=" + quote(clusterName);
+    }
+
+    /**
+     * @return the value as a search query string, so that spaces or search
+     * keywords in it are not taken as part of the query
+     */
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+               + "\"";
     }
 
     /**
      * Get a list of VM objects; those VM objects represents all the vms in
      * the ovirt server belonging to a cluster, if the cluster value is
-     * specified.
+     * specified. The list comes from the inventory cache.
      *
      * @return list of VM objects
      */
     public List<VM> getVMs() {
         try {
-            List<VM> vms = getAPI().getVMs().list();
-            List<VM> vmsInCluster = new ArrayList<VM>();
-            // if clusterName specified, search for vms in that cluster
-            if (isClusterSpecified()) {
-                for (VM vm : vms) {
-                    if (vm.getCluster()
-                            .getHref()
-                            .equals(getCluster().getHref())) {
-                        vmsInCluster.add(vm);
-                    }
-                }
-                return vmsInCluster;
-            } else {
-                return vms;
-            }
+            return getInventory().list();
         } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not get the vms", e);
             return null;
         }
     }
 
+    /**
+     * Get the list of vms from the ovirt server, belonging to the cluster if
+     * specified. This is what fills the inventory cache.
+     *
+     * The cluster filtering is done by the ovirt server, unless it rejects
+     * the search query, in which case all the vms are listed and filtered
+     * here.
+     *
+     * @return list of VM objects
+     * @throws Exception some issue with the ovirt server communication
+     */
+    protected List<VM> loadVMs() throws Exception {
+        if (!isClusterSpecified()) {
+            return listAllVMs();
+        }
+
+        if (!searchUnsupported) {
+            try {
+                return searchVMs(clusterQuery(""));
+            } catch (Exception e) {
+                if (!isSearchRejected(e)) {
+                    throw e;
+                }
+                searchRejected(e);
+            }
+        }
+
+        List<VM> vms = listAllVMs();
+        List<VM> vmsInCluster = new ArrayList<VM>();
+        // if clusterName specified, search for vms in that cluster
+        for (VM vm : vms) {
+            if (vm.getCluster()
+                    .getHref()
+                    .equals(getCluster().getHref())) {
+                vmsInCluster.add(vm);
+            }
+        }
+        return vmsInCluster;
+    }
 
     /**
      * Get the cluster object corresponding to the clusterName if clusterName
@@ -254,7 +1211,11 @@ public class OVirtHypervisor extends Cloud {
      */
     public Cluster getCluster() throws Exception {
         if (cluster == null && isClusterSpecified()) {
-            cluster = getAPI().getClusters().get(clusterName);
+            cluster = getApiPool().execute(new ApiPool.ApiCall<Cluster>() {
+                public Cluster call(Api api) throws Exception {
+                    return api.getClusters().get(clusterName);
+                }
+            });
         }
         return cluster;
     }
@@ -304,7 +1265,7 @@ public class OVirtHypervisor extends Cloud {
                          @QueryParameter("username") final String username,
                          @QueryParameter("password") final String password) {
             try {
-                new Api(ovirtURL, username, password, true, true).shutdown();
+                SessionStore.get().test(ovirtURL, username, password);
                 return FormValidation.ok("Test succeeded!");
             } catch (Exception e) {
                 return FormValidation.error(e.getMessage());
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * OVirtMetricsAction shows the LaunchMetrics at /ovirt-metrics, and serves
+ * them as JSON at /ovirt-metrics/json. They name the vms, so only the
+ * administrators see them.
+ */
+@Extension
+public class OVirtMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        if (!Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+            return null;
+        }
+        return "graph.png";
+    }
+
+    public String getDisplayName() {
+        return "oVirt launch metrics";
+    }
+
+    public String getUrlName() {
+        return "ovirt-metrics";
+    }
+
+    public LaunchMetrics getMetrics() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return LaunchMetrics.get();
+    }
+
+    /**
+     * Serve the metrics as JSON.
+     *
+     * @param req the request
+     * @param rsp the response
+     * @throws IOException the response could not be written
+     */
+    public void doJson(StaplerRequest req, StaplerResponse rsp)
+                                                        throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(getMetrics().toJSON().toString(2));
+    }
+}
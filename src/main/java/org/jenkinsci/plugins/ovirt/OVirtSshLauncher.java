@@ -23,65 +23,132 @@
  */
 package org.jenkinsci.plugins.ovirt;
 
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import org.kohsuke.stapler.DataBoundConstructor;
-import org.kohsuke.stapler.framework.io.IOException2;
 import org.ovirt.engine.sdk.decorators.VM;
-import org.ovirt.engine.sdk.entities.IP;
+import org.kohsuke.stapler.framework.io.IOException2;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.SFTPv3FileAttributes;
 import com.trilead.ssh2.Session;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.Descriptor;
-import hudson.model.Slave;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 import hudson.util.NamingThreadFactory;
+import hudson.util.ListBoxModel;
 import hudson.util.NullStream;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
 
 /**
  * Part of code taken from ssh slaves plugin
  */
 public class OVirtSshLauncher extends ComputerLauncher {
 
-    // TODO: use credentials
     private String username;
 
     private String password;
 
+    /**
+     * Id of the SSH private key credentials to log in with. If empty, or if
+     * the key is refused, the password is used.
+     */
+    private String credentialsId;
+
+    /**
+     * Fingerprint of the host key of the vm, e.g the one of its snapshot, as
+     * in "aa:bb:..". If empty, the key seen the first time is trusted.
+     */
+    private String hostKeyFingerprint;
+
+    /**
+     * Address of the vm, if it is fixed. If empty, the address is the one
+     * reported by the guest agent of the vm.
+     */
+    private String host;
+
     // TODO: Don't hardcode these values
     private int launchTimeout = 300000;
     private int maxRetries = 5;
     private int retryWaitTime = 30;
 
     /**
-     * SSH connection to the slave.
+     * SSH connection of each node launched. Every launch opens its own, so
+     * that nodes sharing this launcher, e.g the ones created from the same
+     * template, are launched in parallel.
      */
-    private transient Connection connection;
+    private static final ConcurrentMap<SlaveComputer, NodeConnection> CONNECTIONS =
+            new ConcurrentHashMap<SlaveComputer, NodeConnection>();
+
+    /**
+     * The SSH connection of a node, and the session running its slave agent.
+     * 'reusable' is set once the connection is known to work, so that it
+     * can be pooled after the node is done with it.
+     */
+    private static final class NodeConnection {
+        private final String hypervisor;
+        private final String vmName;
+        private final String user;
+        private final AtomicBoolean reusable = new AtomicBoolean();
+        private volatile Connection connection;
+        private volatile Session session;
+
+        private NodeConnection(String hypervisor, String vmName, String user,
+                               Connection connection) {
+            this.hypervisor = hypervisor;
+            this.vmName = vmName;
+            this.user = user;
+            this.connection = connection;
+        }
+    }
 
-    @DataBoundConstructor
     public OVirtSshLauncher(String username, String password) {
+        this(username, password, "");
+    }
+
+    public OVirtSshLauncher(String username, String password, String host) {
+        this(username, password, host, "", "");
+    }
+
+    @DataBoundConstructor
+    public OVirtSshLauncher(String username, String password, String host,
+                            String credentialsId, String hostKeyFingerprint) {
         super();
         this.username = username;
         this.password = password;
+        this.host = host;
+        this.credentialsId = credentialsId;
+        this.hostKeyFingerprint = hostKeyFingerprint;
     }
 
     /**
@@ -93,35 +160,37 @@ public class OVirtSshLauncher extends ComputerLauncher {
      * @param taskListener  listener
      */
     @Override
-    public synchronized void launch(final SlaveComputer slaveComputer, final TaskListener taskListener)
+    public void launch(final SlaveComputer slaveComputer, final TaskListener taskListener)
             throws IOException, InterruptedException {
 
         OVirtVMSlave slave = (OVirtVMSlave) slaveComputer.getNode();
-        String hypervisor = slave.getHypervisorDescription();
-        String vmName = slave.getVirtualMachineName();
-
-        String ip = null;
-
-        for (int i = 0; i < maxRetries; i++) {
-            try {
-                VM vm = OVirtHypervisor.find(hypervisor).getVM(vmName);
-                List<IP> ips = vm.getGuestInfo().getIps().getIPs();
-
-                if (ips.size() >= 1) {
-                    // use first IP to connect via ssh
-                    ip = ips.get(0).getAddress();
-                    taskListener.getLogger().println("IP of VM Obtained! " + ip);
-                    break;
-                }
-            } catch (NullPointerException e) {
-                taskListener.error("Couldn't get IP address of VM.. retrying in " + retryWaitTime + " s");
-                Thread.sleep(TimeUnit.SECONDS.toMillis(retryWaitTime));
+        final String hypervisor = slave.getHypervisorDescription();
+        final String vmName = slave.getCurrentVMName();
+        final VMLifecycle lifecycle = VMLifecycle.of(hypervisor, vmName);
+        lifecycle.moveTo(VMLifecycle.State.IP_WAIT);
+
+        final PhaseTimer timer = new PhaseTimer();
+        timer.start("ip");
+        final String ip = getIp(hypervisor, vmName, taskListener);
+        final boolean probed = isProbed(hypervisor, vmName, ip);
+        final SSHUserPrivateKey key = getPrivateKey();
+        final String user = getLoginUser(key);
+        final ServerHostKeyVerifier hostKeys = getHostKeyVerifier(hypervisor, vmName);
+        final AtomicBoolean refused = new AtomicBoolean();
+        final ServerHostKeyVerifier verifier = new ServerHostKeyVerifier() {
+            public boolean verifyServerHostKey(String hostname, int port,
+                                               String algorithm, byte[] hostKey)
+                    throws Exception {
+                boolean accepted = hostKeys.verifyServerHostKey(hostname, port,
+                                                                algorithm, hostKey);
+                refused.set(!accepted);
+                return accepted;
             }
-        }
-        if (ip == null) {
-            throw new InterruptedException("Couldn't find IP address of VM. Abandoning...");
-        }
-        connection = new Connection(ip, 22);
+        };
+        final Connection pooled = SshConnectionPool.get().take(user, ip, 22);
+        final NodeConnection node = new NodeConnection(hypervisor, vmName, user,
+                pooled != null ? pooled : new Connection(ip, 22));
+        CONNECTIONS.put(slaveComputer, node);
 
         ExecutorService executorService = Executors.newSingleThreadExecutor(
                 new NamingThreadFactory(Executors.defaultThreadFactory(),
@@ -133,9 +202,47 @@ public class OVirtSshLauncher extends ComputerLauncher {
             public Boolean call() throws InterruptedException {
                 Boolean rval = Boolean.FALSE;
                 try {
-                    openConnection(taskListener);
-                    verifyNoHeaderJunk(taskListener);
-                    reportEnvironment(taskListener);
+                    lifecycle.moveTo(VMLifecycle.State.SSH);
+                    Connection connection = node.connection;
+                    boolean reused = false;
+                    if (pooled != null) {
+                        taskListener.getLogger().println("Reusing the SSH connection to " + ip);
+                        timer.start("setup");
+                        try {
+                            // the first round trip: the vm may have been
+                            // restarted since the connection was pooled
+                            verifyNoHeaderJunk(pooled, taskListener);
+                            reused = true;
+                        } catch (IOException e) {
+                            taskListener.getLogger().println(
+                                    "The reused SSH connection is dead, opening a new one: " + e);
+                            pooled.close();
+                            connection = new Connection(ip, 22);
+                            node.connection = connection;
+                        }
+                    }
+                    if (!reused) {
+                        try {
+                            openConnection(connection, verifier, user, key, timer, taskListener);
+                        } catch (IOException e) {
+                            if (!probed || !refused.get()) {
+                                throw e;
+                            }
+                            // another machine got the last known address
+                            taskListener.getLogger().println("Host key refused at " + ip
+                                    + ", the last known IP of the VM");
+                            connection.close();
+                            timer.start("ip");
+                            connection = new Connection(
+                                    getReportedIp(hypervisor, vmName, taskListener), 22);
+                            node.connection = connection;
+                            openConnection(connection, verifier, user, key, timer, taskListener);
+                        }
+                        node.reusable.set(true);
+                        timer.start("setup");
+                        verifyNoHeaderJunk(connection, taskListener);
+                    }
+                    reportEnvironment(connection, taskListener);
 
                     final String workingDirectory = getWorkingDirectory(slaveComputer);
                     if (workingDirectory == null) {
@@ -143,8 +250,13 @@ public class OVirtSshLauncher extends ComputerLauncher {
                         return Boolean.FALSE;
                     }
 
-                    copySlaveJar(taskListener, workingDirectory);
-                    startSlave(slaveComputer, taskListener, workingDirectory);
+                    timer.start("copy");
+                    copySlaveJar(connection, taskListener, workingDirectory);
+                    timer.start("start");
+                    node.session = startSlave(connection, slaveComputer, taskListener,
+                                              workingDirectory);
+                    timer.stop();
+                    node.reusable.set(true);
 
                     PluginEntry.register(connection);
                     rval = Boolean.TRUE;
@@ -173,44 +285,195 @@ public class OVirtSshLauncher extends ComputerLauncher {
                 res = results.get(0).get();
             } catch (ExecutionException e) {
                 res = Boolean.FALSE;
+            } catch (CancellationException e) {
+                // timed out, the connection may still be in use
+                node.reusable.set(false);
+                res = Boolean.FALSE;
+            }
+            if (!results.get(0).isCancelled()) {
+                // else the launch thread may still be using the timer
+                timer.stop();
+                LaunchMetrics.get().record(hypervisor, vmName, timer);
             }
             if (!res) {
-                System.out.println("Launch failed");
-                taskListener.getLogger().println(" Launch failed - cleaning up connection");
-                cleanupConnection(taskListener);
+                if (node.reusable.get() && CONNECTIONS.remove(slaveComputer, node)) {
+                    // the vm stays up after a failed launch: the next one
+                    // can reuse the connection. A reused connection which
+                    // failed is not offered again.
+                    taskListener.getLogger().println(" Launch failed - keeping the connection for the next launch");
+                    SshConnectionPool.get().offer(user, node.connection);
+                } else {
+                    taskListener.getLogger().println(" Launch failed - cleaning up connection");
+                    cleanupConnection(slaveComputer, taskListener);
+                }
             } else {
-                System.out.println("Launch completed");
+                taskListener.getLogger().println("Launch phases: " + timer);
             }
             executorService.shutdown();
         } catch (InterruptedException e) {
-            System.out.println("Launch failed");
+            taskListener.getLogger().println(" Launch interrupted - cleaning up connection");
+            cleanupConnection(slaveComputer, taskListener);
+        }
+    }
+
+    /**
+     * Get the address of the vm: the fixed one if set, or else the one found
+     * by the IpResolver of the hypervisor.
+     *
+     * @param hypervisor the hypervisor description
+     * @param vmName the vm
+     * @param listener listener
+     * @return the address
+     * @throws InterruptedException no address was found
+     */
+    private String getIp(String hypervisor, String vmName,
+                         TaskListener listener) throws InterruptedException {
+        if (host != null && host.trim().length() > 0) {
+            return host.trim();
+        }
+
+        listener.getLogger().println("Waiting for the IP of the VM...");
+        String address = awaitIp(OVirtHypervisor.find(hypervisor).getIpResolver()
+                .resolve(vmName, getIpTimeoutMillis()), listener);
+        if (isProbed(hypervisor, vmName, address)
+                && !isHostKeyKnown(hypervisor, vmName)) {
+            // the key of whatever answers there would be trusted
+            listener.getLogger().println("No host key to check " + address
+                    + " against, waiting for the guest agent to report the IP...");
+            address = getReportedIp(hypervisor, vmName, listener);
+        }
+        return address;
+    }
+
+    /**
+     * Get the address of the vm reported by its guest agent.
+     *
+     * @param hypervisor the hypervisor description
+     * @param vmName the vm
+     * @param listener listener
+     * @return the address
+     * @throws InterruptedException no address was found
+     */
+    private String getReportedIp(String hypervisor, String vmName,
+                                 TaskListener listener) throws InterruptedException {
+        return awaitIp(OVirtHypervisor.find(hypervisor).getIpResolver()
+                .resolveReported(vmName, getIpTimeoutMillis()), listener);
+    }
+
+    private long getIpTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis((long) maxRetries * retryWaitTime);
+    }
+
+    /**
+     * @return true if the address is the last known one of the vm, which
+     * answered on the ssh port, but was not reported by the guest agent
+     */
+    private boolean isProbed(String hypervisor, String vmName, String ip) {
+        if (host != null && host.trim().length() > 0) {
+            return false;
+        }
+        return OVirtHypervisor.find(hypervisor).getIpResolver().isProbed(vmName, ip);
+    }
+
+    /**
+     * @return true if there is a host key to check the vm against
+     */
+    private boolean isHostKeyKnown(String hypervisor, String vmName) {
+        if (hostKeyFingerprint != null && hostKeyFingerprint.trim().length() > 0) {
+            return true;
+        }
+        VM vm = OVirtHypervisor.find(hypervisor).getVM(vmName);
+        return vm != null && HostKeyStore.get().getFingerprint(vm.getId()) != null;
+    }
+
+    private String awaitIp(Future<String> ip, TaskListener listener)
+            throws InterruptedException {
+        try {
+            String address = ip.get();
+            listener.getLogger().println("IP of VM Obtained! " + address);
+            return address;
+        } catch (ExecutionException e) {
+            InterruptedException ie = new InterruptedException(
+                    "Couldn't find IP address of VM. Abandoning...");
+            ie.initCause(e.getCause());
+            throw ie;
+        } finally {
+            ip.cancel(false);
+        }
+    }
+
+    /**
+     * @return the SSH private key credentials to log in with, or null if
+     * none are set
+     */
+    private SSHUserPrivateKey getPrivateKey() {
+        if (credentialsId == null || credentialsId.trim().length() == 0) {
+            return null;
         }
+        return CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(SSHUserPrivateKey.class,
+                        Jenkins.getInstance(), ACL.SYSTEM,
+                        Collections.<DomainRequirement>emptyList()),
+                CredentialsMatchers.withId(credentialsId.trim()));
     }
 
-    protected void openConnection(TaskListener listener) throws IOException, InterruptedException {
+    /**
+     * @return the username set, or else the one of the credentials
+     */
+    private String getLoginUser(SSHUserPrivateKey key) {
+        if ((username == null || username.trim().length() == 0) && key != null) {
+            return key.getUsername();
+        }
+        return username;
+    }
+
+    /**
+     * @return the verifier checking the host key of the vm, keyed by the
+     * vm id in the HostKeyStore
+     */
+    private ServerHostKeyVerifier getHostKeyVerifier(String hypervisor, String vmName)
+            throws IOException {
+        VM vm = OVirtHypervisor.find(hypervisor).getVM(vmName);
+        if (vm == null) {
+            throw new AbortException("VM '" + vmName + "' not found");
+        }
+        return HostKeyStore.get().verifierFor(vm.getId(), vmName, hostKeyFingerprint);
+    }
+
+    /**
+     * Wait for the ssh server of the vm to be ready, then connect and
+     * authenticate, with the private key if there is one, or else with the
+     * password.
+     *
+     * @param connection the connection to open
+     * @param verifier checks the host key of the vm
+     * @param user the user to log in as
+     * @param key the private key credentials, or null
+     * @param timer where to record the time spent in each step
+     * @param listener the listener
+     */
+    protected void openConnection(Connection connection, ServerHostKeyVerifier verifier,
+                                  String user, SSHUserPrivateKey key,
+                                  PhaseTimer timer, TaskListener listener)
+            throws IOException, InterruptedException {
         PrintStream logger = listener.getLogger();
         connection.setTCPNoDelay(true);
 
-        for (int i = 0; i <= maxRetries; i++) {
-            try {
-                connection.connect();
-                break;
-            } catch (IOException ioexception) {
-                String message = ioexception.getMessage();
-
-                if (maxRetries - i > 0) {
-                    logger.println("SSH Connection failed with IOException: \"" + message
-                            + "\", retrying in " + retryWaitTime + " seconds.  There are "
-                            + (maxRetries - i) + " more retries left.");
-                } else {
-                    logger.println("SSH Connection failed with IOException: \"" + message + "\".");
-                    throw ioexception;
-                }
+        new SshReadinessProbe(connection.getHostname(), connection.getPort(),
+                              launchTimeout, timer, logger)
+                .connect(connection, verifier);
+
+        timer.start("auth");
+        if (key != null) {
+            Secret passphrase = key.getPassphrase();
+            if (!connection.authenticateWithPublicKey(user, key.getPrivateKey().toCharArray(),
+                    passphrase == null ? null : passphrase.getPlainText())) {
+                logger.println("Key " + credentialsId + " refused for " + user);
             }
         }
-        Thread.sleep(TimeUnit.SECONDS.toMillis(retryWaitTime));
-
-        connection.authenticateWithPassword(username, password);
+        if (!connection.isAuthenticationComplete() && password != null && password.length() > 0) {
+            connection.authenticateWithPassword(user, password);
+        }
 
         if (connection.isAuthenticationComplete()) {
             logger.println("Authentication successful");
@@ -223,7 +486,7 @@ public class OVirtSshLauncher extends ComputerLauncher {
     /**
      * Makes sure that SSH connection won't produce any unwanted text, which will interfere with sftp execution.
      */
-    private void verifyNoHeaderJunk(TaskListener listener) throws
+    private void verifyNoHeaderJunk(Connection connection, TaskListener listener) throws
             IOException, InterruptedException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         connection.exec("true", baos);
@@ -242,7 +505,8 @@ public class OVirtSshLauncher extends ComputerLauncher {
         }
     }
 
-    protected void reportEnvironment(TaskListener listener) throws IOException, InterruptedException {
+    protected void reportEnvironment(Connection connection, TaskListener listener)
+            throws IOException, InterruptedException {
         listener.getLogger().println("Environment:");
         connection.exec("set", listener.getLogger());
     }
@@ -250,13 +514,16 @@ public class OVirtSshLauncher extends ComputerLauncher {
     /**
      * Starts the slave process.
      *
+     * @param connection       The connection to the slave.
      * @param computer         The computer.
      * @param listener         The listener.
      * @param workingDirectory The working directory from which to start the java process.
+     * @return the session running the slave process
      * @throws IOException If something goes wrong.
      */
-    private void startSlave(SlaveComputer computer, final TaskListener listener,
-                            String workingDirectory) throws IOException {
+    private Session startSlave(Connection connection, SlaveComputer computer,
+                               final TaskListener listener,
+                               String workingDirectory) throws IOException {
         Session session = connection.openSession();
         expandChannelBufferSize(session, listener);
         String cmd = "cd \"" + workingDirectory + "\" && java -jar slave.jar";
@@ -268,6 +535,7 @@ public class OVirtSshLauncher extends ComputerLauncher {
 
         try {
             computer.setChannel(session.getStdout(), session.getStdin(), listener.getLogger(), null);
+            return session;
         } catch (InterruptedException e) {
             session.close();
             throw new IOException2("Aborted during connection open", e);
@@ -323,10 +591,11 @@ public class OVirtSshLauncher extends ComputerLauncher {
     /**
      * Called to terminate the SSH connection. Used liberally when we back out from an error.
      */
-    private void cleanupConnection(TaskListener listener) {
+    private void cleanupConnection(SlaveComputer computer, TaskListener listener) {
         // we might be called multiple times from multiple finally/catch block,
-        if (connection != null) {
-            connection.close();
+        NodeConnection node = CONNECTIONS.remove(computer);
+        if (node != null) {
+            node.connection.close();
             listener.getLogger().println("Connection closed");
         }
     }
@@ -339,6 +608,18 @@ public class OVirtSshLauncher extends ComputerLauncher {
         this.username = username;
     }
 
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getHostKeyFingerprint() {
+        return hostKeyFingerprint;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
     public String getPassword() {
         return password;
     }
@@ -351,13 +632,21 @@ public class OVirtSshLauncher extends ComputerLauncher {
     /**
      * Method copies the slave jar to the remote system.
      *
+     * @param connection       The connection to the slave.
      * @param listener         The listener.
      * @param workingDirectory The directory into whihc the slave jar will be copied.
      * @throws IOException If something goes wrong.
      */
-    private void copySlaveJar(TaskListener listener, String workingDirectory) throws IOException, InterruptedException {
+    private void copySlaveJar(Connection connection, TaskListener listener,
+                              String workingDirectory) throws IOException, InterruptedException {
         String fileName = workingDirectory + "/slave.jar";
 
+        if (isSlaveJarUpToDate(connection, fileName, listener)) {
+            // e.g it was baked into the snapshot, or copied by the last launch
+            listener.getLogger().println("slave.jar is up to date, not copying it");
+            return;
+        }
+
         listener.getLogger().println("Starting sftp client");
         SFTPClient sftpClient = null;
         try {
@@ -383,14 +672,14 @@ public class OVirtSshLauncher extends ComputerLauncher {
                 listener.getLogger().println("Copying slave jar");
 
                 try {
-                    byte[] slaveJar = new Slave.JnlpJar("slave.jar").readFully();
+                    SlaveJarCache slaveJar = SlaveJarCache.get();
                     OutputStream os = sftpClient.writeToFile(fileName);
                     try {
-                        os.write(slaveJar);
+                        slaveJar.writeTo(os);
                     } finally {
                         os.close();
                     }
-                    listener.getLogger().println("Copied " + slaveJar.length + " bytes");
+                    listener.getLogger().println("Copied " + slaveJar.getLength() + " bytes");
                 } catch (Error error) {
                     throw error;
                 } catch (Throwable e) {
@@ -405,7 +694,7 @@ public class OVirtSshLauncher extends ComputerLauncher {
             if (sftpClient == null) {
                 e.printStackTrace(listener.error("Starting stfp client"));
                 // lets try to recover if the slave doesn't have an SFTP service
-                copySlaveJarUsingSCP(listener, workingDirectory);
+                copySlaveJarUsingSCP(connection, listener, workingDirectory);
             } else {
                 throw e;
             }
@@ -416,15 +705,45 @@ public class OVirtSshLauncher extends ComputerLauncher {
         }
     }
 
+    /**
+     * Tell whether the slave jar on the remote system is the same as the one
+     * of the master, by comparing their SHA-256 digests. The remote digest is
+     * computed on the remote system, so nothing is transferred.
+     *
+     * @param connection The connection to the slave.
+     * @param fileName   The remote slave jar.
+     * @param listener   The listener.
+     * @return true if the remote slave jar does not need to be copied again
+     */
+    private boolean isSlaveJarUpToDate(Connection connection, String fileName,
+                                       TaskListener listener) throws InterruptedException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            String quoted = "'" + fileName.replace("'", "'\\''") + "'";
+            if (connection.exec("sha256sum " + quoted + " 2>/dev/null || shasum -a 256 "
+                    + quoted + " 2>/dev/null", out) != 0) {
+                // no slave jar yet, or no way to compute its digest
+                return false;
+            }
+            String remote = out.toString("US-ASCII").trim().split("\\s+")[0];
+            return remote.equalsIgnoreCase(SlaveJarCache.get().getDigest());
+        } catch (IOException e) {
+            listener.getLogger().println("Could not check the remote slave.jar: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Method copies the slave jar to the remote system using scp.
      *
+     * @param connection       The connection to the slave.
      * @param listener         The listener.
      * @param workingDirectory The directory into which the slave jar will be copied.
      * @throws IOException          If something goes wrong.
      * @throws InterruptedException If something goes wrong.
      */
-    private void copySlaveJarUsingSCP(TaskListener listener, String workingDirectory) throws IOException, InterruptedException {
+    private void copySlaveJarUsingSCP(Connection connection, TaskListener listener,
+                                      String workingDirectory) throws IOException, InterruptedException {
         SCPClient scp = new SCPClient(connection);
         try {
             // check if the working directory exists
@@ -439,20 +758,78 @@ public class OVirtSshLauncher extends ComputerLauncher {
             // delete the slave jar as we do with SFTP
             connection.exec("rm " + workingDirectory + "/slave.jar", new NullStream());
 
-            // SCP it to the slave. hudson.Util.ByteArrayOutputStream2 doesn't work for this. It pads the byte array.
+            // SCP the local copy, named slave.jar, to the slave
             listener.getLogger().println("Copying slave jar");
-            scp.put(new Slave.JnlpJar("slave.jar").readFully(), "slave.jar", workingDirectory, "0644");
+            scp.put(SlaveJarCache.get().getFile().getPath(), workingDirectory, "0644");
         } catch (IOException e) {
             throw new IOException2("Error copying slave jar", e);
         }
     }
 
+    /**
+     * Once the node disconnected, keep its SSH connection for the next
+     * launch on that host if it is still up and authenticated, so that a
+     * relaunch, e.g after the channel dropped, skips the handshake; or else
+     * close it. It is closed too when the vm is being torn down by the
+     * OVirtVMLauncher, as it would not survive the shutdown.
+     *
+     * @param computer node that has been disconnected
+     * @param listener listener
+     */
+    @Override
+    public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
+        NodeConnection node = CONNECTIONS.remove(computer);
+        if (node == null) {
+            return;
+        }
+        if (node.session != null) {
+            node.session.close();
+        }
+        VMLifecycle.State state =
+                VMLifecycle.of(node.hypervisor, node.vmName).getState();
+        boolean tornDown = state == VMLifecycle.State.DRAINING
+                           || state == VMLifecycle.State.DOWN;
+        if (node.reusable.get() && !tornDown && isAlive(node.connection)) {
+            SshConnectionPool.get().offer(node.user, node.connection);
+            listener.getLogger().println("Keeping the connection for the next launch");
+        } else {
+            node.connection.close();
+            listener.getLogger().println("Connection closed");
+        }
+    }
+
+    /**
+     * Doesn't wait for the server, so that a connection to a host which went
+     * away doesn't hold the disconnection: the pool checks it again before
+     * reusing it.
+     *
+     * @return true if the transport is not known to be down
+     */
+    private static boolean isAlive(Connection connection) {
+        if (!connection.isAuthenticationComplete()) {
+            return false;
+        }
+        try {
+            connection.sendIgnorePacket();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
         @Override
         public String getDisplayName() {
             return "RHEV + SSH Connection";
         }
+
+        public ListBoxModel doFillCredentialsIdItems() {
+            return new StandardListBoxModel().withEmptySelection().withAll(
+                    CredentialsProvider.lookupCredentials(SSHUserPrivateKey.class,
+                            Jenkins.getInstance(), ACL.SYSTEM,
+                            Collections.<DomainRequirement>emptyList()));
+        }
     }
 
     private static class DelegateNoCloseOutputStream extends OutputStream {
@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.slaves.ComputerLauncher;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * OVirtTemplate maps a set of labels to an ovirt template. When Jenkins needs
+ * a node with one of those labels, OVirtHypervisor creates a new vm from the
+ * template and adds it as an OVirtCloudSlave.
+ *
+ * @see OVirtHypervisor#provision
+ */
+public class OVirtTemplate extends AbstractDescribableImpl<OVirtTemplate> {
+
+    private static final Pattern NAME_PREFIX = Pattern.compile("[-_a-z0-9]+",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String templateName;
+    private final String labelString;
+    private final String namePrefix;
+    private final int instanceCap;
+    private final int numExecutors;
+    private final String remoteFS;
+    private final int idleMinutes;
+    private final ComputerLauncher delegateLauncher;
+    private final int minWarm;
+    private final int maxWarm;
+    private final int warmIdleMinutes;
+
+    /**
+     * @param templateName the ovirt template the vms are created from
+     * @param labelString the labels of the nodes created
+     * @param namePrefix the vm names start with that prefix
+     * @param instanceCap maximum number of vms created from that template.
+     *                    0 means no limit
+     * @param numExecutors how many executors each node has
+     * @param remoteFS the filesystem used on the nodes
+     * @param idleMinutes the vm is removed after being idle that long
+     * @param delegateLauncher the launcher used once the vm is up
+     * @param minWarm how many vms are always kept up, ready to be used
+     * @param maxWarm up to how many vms are kept up when demand is high
+     * @param warmIdleMinutes vms kept up above minWarm are removed after
+     *                        being unused that long
+     */
+    @DataBoundConstructor
+    public OVirtTemplate(String templateName, String labelString,
+                         String namePrefix, int instanceCap, int numExecutors,
+                         String remoteFS, int idleMinutes,
+                         ComputerLauncher delegateLauncher,
+                         int minWarm, int maxWarm, int warmIdleMinutes) {
+        this.templateName = templateName.trim();
+        this.labelString = labelString.trim();
+        this.namePrefix = namePrefix.trim();
+        this.instanceCap = instanceCap;
+        this.numExecutors = Math.max(numExecutors, 1);
+        this.remoteFS = remoteFS.trim();
+        this.idleMinutes = idleMinutes;
+        this.delegateLauncher = delegateLauncher;
+        this.minWarm = Math.max(minWarm, 0);
+        this.maxWarm = Math.max(maxWarm, this.minWarm);
+        this.warmIdleMinutes = warmIdleMinutes;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public ComputerLauncher getDelegateLauncher() {
+        return delegateLauncher;
+    }
+
+    public int getMinWarm() {
+        return minWarm;
+    }
+
+    public int getMaxWarm() {
+        return maxWarm;
+    }
+
+    public int getWarmIdleMinutes() {
+        return warmIdleMinutes;
+    }
+
+    /**
+     * @param label the label Jenkins needs a node for. null means any node
+     * @return true if the nodes created from this template have that label
+     */
+    public boolean matches(Label label) {
+        if (label == null) {
+            return labelString.equals("");
+        }
+        return label.matches(Label.parse(labelString));
+    }
+
+    /**
+     * @return a new unique vm name, starting with the name prefix
+     */
+    public String newVMName() {
+        return namePrefix + "-"
+               + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * @param vmName a vm name
+     * @return true if that vm was created from this template
+     */
+    public boolean isNameOf(String vmName) {
+        return vmName.startsWith(namePrefix + "-");
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<OVirtTemplate> {
+
+        @Override
+        public String getDisplayName() {
+            return "ovirt template";
+        }
+
+        /**
+         * The name prefix is used in vm names and node names, so only allow
+         * letters, numbers, dash (-) and underscore (_)
+         *
+         * @param namePrefix the name prefix to verify
+         * @return FormValidation object
+         */
+        public FormValidation doCheckNamePrefix(@QueryParameter("namePrefix")
+                                                final String namePrefix) {
+            if (NAME_PREFIX.matcher(namePrefix).matches()) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Name prefix allows only: "
+                                        + NAME_PREFIX.pattern());
+        }
+    }
+}
@@ -4,12 +4,21 @@ import hudson.model.TaskListener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
-import java.io.IOException;
+import hudson.model.Computer;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.ovirt.engine.sdk.decorators.VM;
-import org.ovirt.engine.sdk.decorators.VMSnapshot;
-import org.ovirt.engine.sdk.entities.Action;
 
 /**
  * Extension point to allow control over how Computers are "launched",
@@ -24,6 +33,16 @@ import org.ovirt.engine.sdk.entities.Action;
  */
 public class OVirtVMLauncher extends ComputerLauncher {
 
+    private static final Logger LOGGER =
+            Logger.getLogger(OVirtVMLauncher.class.getName());
+
+    /**
+     * Prefix of the description of the disposable clones, followed by the
+     * node name, so that clones left over by a previous Jenkins run can be
+     * recognized
+     */
+    static final String CLONE_DESCRIPTION = "Jenkins disposable clone for ";
+
     private ComputerLauncher delegateLauncher;
 
     private String hypervisorDescription;
@@ -32,18 +51,54 @@ public class OVirtVMLauncher extends ComputerLauncher {
 
     private final int WAITING_TIME_MILLISECS;
     private final int retries;
+    private WaitStrategy waitStrategy;
+    private String cloneTemplateName;
+    private boolean revertOnRelease;
+
+    /**
+     * In disposable clone mode: the clone used by the current connection,
+     * and the one being prepared for the next connection. Both are changed
+     * with the lock of this launcher held.
+     */
+    private transient volatile String cloneName;
+    private transient Future<String> nextClone;
+
+    /**
+     * Set once the node was terminated, and its vm is being deleted
+     */
+    private transient volatile boolean terminated;
 
-    @DataBoundConstructor
     public OVirtVMLauncher(ComputerLauncher delegateLauncher,
                            String hypervisorDescription, String virtualMachineName,
                            String snapshotName, int waitingTimeSecs, int retries) {
+        this(delegateLauncher, hypervisorDescription, virtualMachineName,
+             snapshotName, waitingTimeSecs, retries, null);
+    }
+
+    public OVirtVMLauncher(ComputerLauncher delegateLauncher,
+                           String hypervisorDescription, String virtualMachineName,
+                           String snapshotName, int waitingTimeSecs, int retries,
+                           WaitStrategy waitStrategy) {
+        this(delegateLauncher, hypervisorDescription, virtualMachineName,
+             snapshotName, waitingTimeSecs, retries, waitStrategy, "", false);
+    }
+
+    @DataBoundConstructor
+    public OVirtVMLauncher(ComputerLauncher delegateLauncher,
+                           String hypervisorDescription, String virtualMachineName,
+                           String snapshotName, int waitingTimeSecs, int retries,
+                           WaitStrategy waitStrategy, String cloneTemplateName,
+                           boolean revertOnRelease) {
         super();
+        this.cloneTemplateName = cloneTemplateName;
+        this.revertOnRelease = revertOnRelease;
         this.delegateLauncher = delegateLauncher;
         this.hypervisorDescription = hypervisorDescription;
         this.virtualMachineName = virtualMachineName;
         this.snapshotName = snapshotName;
         this.WAITING_TIME_MILLISECS = secToMilliseconds(waitingTimeSecs);
         this.retries = retries;
+        this.waitStrategy = waitStrategy;
     }
 
     public ComputerLauncher getDelegateLauncher() {
@@ -62,301 +117,359 @@ public class OVirtVMLauncher extends ComputerLauncher {
         return snapshotName;
     }
 
-    public int getWAITING_TIME_MILLISECS() {
-        return WAITING_TIME_MILLISECS;
+    public String getCloneTemplateName() {
+        return cloneTemplateName == null ? "" : cloneTemplateName;
     }
 
-    /**
-     * Super fancy method to convert seconds to milliseconds. The
-     * implementation is O(1).
-     *
-     * @param seconds convert this value to milliseconds
-     * @return the converted value
-     */
-    private static int secToMilliseconds(final int seconds) {
-        return seconds * 1000;
+    public boolean isRevertOnRelease() {
+        return revertOnRelease;
     }
 
     /**
-     * Get the current vm status. It does so by continuously getting a new VM
-     * object corresponding to 'virtualMachineName', and checking on its state.
-     *
-     * We expect the states to be 'up', 'down', 'powering_up', etc
-     *
-     * @return the vm status
+     * @return true if the vm is reverted to its snapshot once the node
+     * disconnects, instead of when it launches
      */
-    private String getVMStatus() {
-        return OVirtHypervisor.find(hypervisorDescription)
-                              .getVM(virtualMachineName)
-                              .getStatus()
-                              .getState();
+    private boolean isRevertedOnRelease() {
+        return revertOnRelease && snapshotName != null
+               && snapshotName.trim().length() > 0;
     }
 
     /**
-     * Helper method to print to the jenkins log output that you'll see on
-     * the jenkins webserver when you start a new node
+     * In disposable clone mode, every connection uses a new vm, created from
+     * 'cloneTemplateName', and deleted after the disconnection. The
+     * configured vm and snapshot are not used.
      *
-     * @param taskListener listener object
-     * @param text text to output
+     * @return true if in disposable clone mode
      */
-    private void printLog(TaskListener taskListener, final String text) {
-        taskListener.getLogger().println(text);
+    public boolean isCloneMode() {
+        return getCloneTemplateName().trim().length() > 0;
     }
 
     /**
-     * Returns a boolean that will return true if a snapshot is specified.
-     * A snapshot is specified when the snapshotName is NOT empty.
-     *
-     * @return true if snapshot name is specified
+     * @return the vm the node runs on: the current clone in disposable clone
+     * mode, or else the configured vm
      */
-    private boolean isSnapshotSpecified() {
-        return !snapshotName.trim().equals("");
+    public String getCurrentVMName() {
+        String clone = cloneName;
+        return clone != null ? clone : virtualMachineName;
     }
 
-    /**
-     * Check is the current vm bounded to this object is down!
-     *
-     * @return true if the vm is down
-     */
-    private boolean isVMDown() {
-        return getVMStatus().equalsIgnoreCase("down");
+    public int getWAITING_TIME_MILLISECS() {
+        return WAITING_TIME_MILLISECS;
     }
 
     /**
-     * Check is the current vm bounded to this object is up!
+     * Nodes configured before wait strategies existed wait for
+     * WAITING_TIME_MILLISECS, 'retries' times.
      *
-     * @return true if the vm is up
+     * @return the WaitStrategy used to wait on the vm
      */
-    private boolean isVMUp() {
-
-        return getVMStatus().equalsIgnoreCase("up");
-    }
-
-    private boolean isVMImageLocked() {
-        return getVMStatus().equalsIgnoreCase("image_locked");
+    public WaitStrategy getWaitStrategy() {
+        if (waitStrategy == null) {
+            return new FixedWaitStrategy(WAITING_TIME_MILLISECS / 1000,
+                                         retries);
+        }
+        return waitStrategy;
     }
 
     /**
-     * Try to wait for WAITING_TIME_MILLISECS' milliseconds to see if the vm
-     * is shutdown.
-     * This wait will be attempted 'retries' times before giving up, and
-     * throwing an exception to announce that we are giving up
+     * Super fancy method to convert seconds to milliseconds. The
+     * implementation is O(1).
      *
-     * @param vm The vm that we are waiting to shutdown
-     * @param taskListener taskListener is needed to print to the jenkins log
-     * @throws Exception
+     * @param seconds convert this value to milliseconds
+     * @return the converted value
      */
-    private void waitVMIsDown(VM vm, TaskListener taskListener)
-                                                            throws Exception {
-        for (int i = 0; i < retries; ++i) {
-            printLog(taskListener, "Waiting for " + vm.getName() +
-                                   " to shutdown...");
-            Thread.sleep(WAITING_TIME_MILLISECS);
-
-            if (isVMDown()) {
-                printLog(taskListener, "VM is now shutdown");
-                return;
-            }
-        }
-        // if we reached here, vm did not shutdown after that many retries
-        printLog(taskListener, "VM did not shutdown properly. Giving up!");
-        throw new Exception("VM did not shutdown at all!");
+    private static int secToMilliseconds(final int seconds) {
+        return seconds * 1000;
     }
 
     /**
-     * Try to wait for WAITING_TIME_MILLISECS' milliseconds to see if the vm
-     * is up.
-     * This wait will be attempted 'retries' times before giving up, and
-     * throwing an exception to announce that we are giving up
+     * Helper method to print to the jenkins log output that you'll see on
+     * the jenkins webserver when you start a new node
      *
-     * @param vm The vm that we are waiting to startup
-     * @param taskListener taskListener is needed to print to the jenkins log
-     * @throws Exception
+     * @param taskListener listener object
+     * @param text text to output
      */
-    private void waitVMIsUp(VM vm, TaskListener taskListener) throws Exception {
-        for (int i = 0; i < retries; ++i) {
-            printLog(taskListener, "Waiting for " + vm.getName() +
-                                   " to start...");
-            Thread.sleep(WAITING_TIME_MILLISECS);
-
-            if (isVMUp()) {
-                printLog(taskListener, "VM is now online!");
-                return;
-            }
-        }
-        printLog(taskListener, "VM did not startup properly. Giving up!");
-        throw new Exception("VM did not startup at all!");
+    private void printLog(TaskListener taskListener, final String text) {
+        taskListener.getLogger().println(text);
     }
 
     /**
-     * Asks ovirt server to shutdown a vm
+     * This method is called when the node is about to be used.
+     * So what it will do (in theory) is to get the vm ready through the
+     * BatchLaunchCoordinator of the hypervisor, then find a way to link to
+     * the vm, and run slave.jar on the vm
      *
-     * @param vm The vm to be stopped
-     * @throws Exception
+     * @param slaveComputer the node to be launched
+     * @param taskListener listener
      */
-    private void shutdownVM(VM vm) throws Exception {
-        Action actionParams = new Action();
-        actionParams.setVm(new org.ovirt.engine.sdk.entities.VM());
-        vm.shutdown(actionParams);
+    @Override
+    public void launch(SlaveComputer slaveComputer, TaskListener taskListener)
+                                     throws IOException, InterruptedException {
+
+        printLog(taskListener, "Connecting to ovirt server...");
+        VMLifecycle lifecycle = null;
+        try {
+            String vmName = virtualMachineName;
+            String snapshot = snapshotName;
+            if (isCloneMode()) {
+                vmName = claimClone(slaveComputer.getName(), taskListener);
+                lifecycle = VMLifecycle.of(hypervisorDescription, vmName);
+                snapshot = "";
+                printLog(taskListener, "Using disposable clone " + vmName);
+            } else {
+                awaitTeardown(taskListener);
+                if (isRevertedOnRelease() && TeardownQueue.get().takeReverted(
+                        hypervisorDescription, vmName, snapshotName)) {
+                    printLog(taskListener, "VM was reverted to snapshot '"
+                             + snapshotName + "' when it was released");
+                    snapshot = "";
+                }
+
+                // no other launch can use the vm until this one failed, or
+                // the node disconnected and the vm was torn down
+                lifecycle = VMLifecycle.of(hypervisorDescription, vmName);
+                lifecycle.claim();
+            }
+
+            // only if snapshot is specified will the vm be shut down and
+            // reverted to the snapshot. This is done together with the other
+            // nodes being launched on the same hypervisor.
+            Future<Void> ready = OVirtHypervisor.find(hypervisorDescription)
+                    .getLaunchCoordinator()
+                    .prepare(vmName, snapshot,
+                             getWaitStrategy(), taskListener);
+            try {
+                ready.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e;
+            }
+
+            delegateLauncher.launch(slaveComputer, taskListener);
+            if (slaveComputer.getChannel() == null) {
+                // the delegate reports its failures in the log only
+                lifecycle.fail();
+                LaunchMetrics.get().countLaunchFailure(hypervisorDescription);
+            } else {
+                lifecycle.moveTo(VMLifecycle.State.ONLINE);
+            }
+        } catch (InterruptedException e) {
+            failed(lifecycle);
+            throw e;
+        } catch (Exception e) {
+            failed(lifecycle);
+            handleLaunchFailure(e, taskListener);
+        }
     }
 
-    /**
-     * Asks ovirt server to start a vm
-     *
-     * @param vm The vm to be started
-     * @throws Exception
-     */
-    private void startVM(VM vm) throws Exception {
-        Action actionParams = new Action();
-        actionParams.setVm(new org.ovirt.engine.sdk.entities.VM());
-        vm.start(actionParams);
+    private void failed(VMLifecycle lifecycle) {
+        if (lifecycle != null) {
+            lifecycle.fail();
+        }
+        LaunchMetrics.get().countLaunchFailure(hypervisorDescription);
     }
 
     /**
-     * Put the vm down, if it is not yet down, and wait for some time to see
-     * if the vm is actually down.
+     * Wait for the vm to be shut down, and maybe reverted, after the last
+     * disconnection, if that is not done yet.
      *
-     * @param vm The vm to be shutdown
      * @param taskListener listener object
-     * @throws Exception
      */
-    private void putVMDown(VM vm, TaskListener taskListener) throws Exception {
-        if (!isVMDown()) {
-            printLog(taskListener, vm.getName() + " is to be shutdown");
-            shutdownVM(vm);
-        } else {
-            printLog(taskListener, vm.getName() + " is already shutdown");
+    private void awaitTeardown(TaskListener taskListener)
+                                                throws InterruptedException {
+        Future<Void> teardown = TeardownQueue.get().getPending(
+                hypervisorDescription, virtualMachineName);
+        if (teardown == null) {
             return;
         }
-        waitVMIsDown(vm, taskListener);
+        printLog(taskListener, "Waiting for the last teardown of the VM...");
+        try {
+            teardown.get();
+        } catch (ExecutionException e) {
+            // the launch shuts the vm down and reverts it if needed anyway
+            printLog(taskListener, "Teardown failed: " + e.getCause());
+        }
     }
 
     /**
-     * Put the vm up if it is not already up, and wait for some time to see
-     * if the vm is actually up.
+     * Claim the clone for a new connection: the one of the last launch if it
+     * failed, or else a clone taken with takeClone. The clone is claimed with
+     * the lock held, so that the disconnection of the last connection, if it
+     * is handled late, can't delete it; the claim fails if that
+     * disconnection is not handled yet.
      *
-     * @param vm The vm to be started
+     * @param nodeName the node the clone is for
      * @param taskListener listener object
-     * @throws Exception
+     * @return the clone name, claimed in its VMLifecycle
+     * @throws Exception some issue with the ovirt server communication
      */
-    private void putVMUp(VM vm, TaskListener taskListener) throws Exception {
-        if (isVMDown()) {
-            printLog(taskListener, vm.getName() + " is to be started");
-            startVM(vm);
-            waitVMIsUp(vm, taskListener);
-        } else {
-            printLog(taskListener, vm.getName() + " is already up");
+    private String claimClone(String nodeName, TaskListener taskListener)
+                                                            throws Exception {
+        synchronized (this) {
+            if (cloneName != null) {
+                VMLifecycle.of(hypervisorDescription, cloneName).claim();
+                return cloneName;
+            }
         }
-
+        String clone = takeClone(nodeName, taskListener);
+        synchronized (this) {
+            cloneName = clone;
+            VMLifecycle.of(hypervisorDescription, clone).claim();
+        }
+        return clone;
     }
 
     /**
-     * Quick note: Don't try to cache the snapshot object. There are cases
-     * where I'll cache the snapshot object based on the name, but the snapshot
-     * on Ovirt will get deleted, and another snapshot with the same name will
-     * be created. In this scenario, the cached snapshot object becomes invalid
+     * Get the clone for a new connection: the one prepared after the last
+     * disconnection if any, or else one left over by a previous Jenkins run,
+     * or else a new one. Clones are created from a template, so their disks
+     * are thin copy-on-write layers over the template disks.
      *
-     * Instead, just always ask Ovirt for the latest snapshot object
-     * @param vm
-     * @param snapshotName
-     * @return
-     * @throws Exception
+     * @param nodeName the node the clone is for
+     * @param taskListener listener object
+     * @return the clone name
+     * @throws Exception some issue with the ovirt server communication
      */
-    private VMSnapshot getSnapshot(VM vm, String snapshotName)
+    private String takeClone(String nodeName, TaskListener taskListener)
                                                             throws Exception {
-        if (!isSnapshotSpecified()) {
-            return null;
+        Future<String> next;
+        synchronized (this) {
+            next = nextClone;
+            nextClone = null;
+        }
+        if (next != null) {
+            try {
+                return next.get();
+            } catch (ExecutionException e) {
+                printLog(taskListener, "The clone prepared in advance failed: "
+                                       + e.getCause());
+            }
         }
 
-        for (VMSnapshot snap: vm.getSnapshots().list()) {
-            if (snap.getDescription().equals(snapshotName)) {
-                return snap;
+        OVirtHypervisor hypervisor = OVirtHypervisor.find(hypervisorDescription);
+        String leftover = null;
+        List<VM> vms = hypervisor.getVMs();
+        for (VM vm : vms == null ? Collections.<VM>emptyList() : vms) {
+            if ((CLONE_DESCRIPTION + nodeName).equals(vm.getDescription())) {
+                if (leftover == null) {
+                    leftover = vm.getName();
+                } else {
+                    hypervisor.destroyVM(vm.getName());
+                }
             }
         }
-        // if we reached here, then the snapshotName is not bound to that
-        // particular vm
-        throw new RuntimeException("No snapshot '" + snapshotName + "' " +
-                "for vm '" + vm.getName() + "' found");
+        if (leftover != null) {
+            return leftover;
+        }
+        return createClone(nodeName);
+    }
+
+    private String createClone(String nodeName) throws Exception {
+        String name = nodeName.replaceAll("[^A-Za-z0-9_.-]", "-") + "-"
+                      + UUID.randomUUID().toString().substring(0, 8);
+        OVirtHypervisor.find(hypervisorDescription)
+                       .createVMFromTemplate(name, cloneTemplateName.trim(),
+                                             CLONE_DESCRIPTION + nodeName);
+        LOGGER.log(Level.INFO, "Created disposable clone " + name);
+        return name;
     }
 
     /**
-     * If snapshot is specified, then this method will try to revert the vm
-     * to the snapshotName. Note that in most cases the vm should be shutdown
-     * before attempting to call this method, even though this claim was
-     * never tested
-     *
-     * If snapshot is not specified, then do nothing
-     *
-     * @param vm: vm to revert snapshot to
-     * @param snapshotName: the snapshotName that the vm will revert to
-     * @param taskListener: listener object
-     * @throws Exception
+     * Delete the clone used by the connection which just ended, and create
+     * the clone for the next one, both in the background. The next launch
+     * then doesn't have to wait for the disks of its clone to be created.
+     * No clone is created for a node which was removed, e.g deleted or
+     * renamed, and the one created already is deleted.
      */
-    private void revertSnapshot(VM vm,
-                                String snapshotName,
-                                TaskListener taskListener) throws Exception {
-
-        if (!isSnapshotSpecified()) {
-            throw new Exception("No snapshot specified!");
+    private void recycleClone(final String nodeName, TaskListener listener) {
+        String used;
+        synchronized (this) {
+            used = cloneName;
+            if (used != null && VMLifecycle.of(hypervisorDescription, used)
+                                           .isLaunching()) {
+                // a new launch took it over meanwhile
+                used = null;
+            } else {
+                cloneName = null;
+            }
         }
-
-        VMSnapshot snapshot = getSnapshot(vm, snapshotName);
-
-        // no snapshot to revert to
-        if (snapshot == null) {
-            throw new Exception("No snapshot specified!");
+        if (used != null) {
+            VMLifecycle.of(hypervisorDescription, used).drain();
+            printLog(listener, "Deleting disposable clone " + used);
+            OVirtHypervisor.find(hypervisorDescription).destroyVM(used);
+            forget(used);
+        }
+        if (isRemoved(nodeName)) {
+            discardNextClone();
+            return;
         }
+        synchronized (this) {
+            if (nextClone == null) {
+                nextClone = Computer.threadPoolForRemoting.submit(
+                        new Callable<String>() {
+                            public String call() throws Exception {
+                                String name = createClone(nodeName);
+                                // the node may have been removed while it
+                                // was disconnecting
+                                if (isRemoved(nodeName)) {
+                                    OVirtHypervisor.find(hypervisorDescription)
+                                                   .destroyVM(name);
+                                    throw new IllegalStateException("Node "
+                                            + nodeName + " was removed");
+                                }
+                                return name;
+                            }
+                        });
+            }
+        }
+    }
 
-        Action actionParams = new Action();
-        actionParams.setVm(new org.ovirt.engine.sdk.entities.VM());
-        snapshot.restore(actionParams);
-        printLog(taskListener, "Reverted '" + vm.getName() + "' to snapshot '"
-                                            + snapshot.getDescription() + "'");
+    private static boolean isRemoved(String nodeName) {
+        return Jenkins.getInstance().getNode(nodeName) == null;
     }
 
     /**
-     * This method is called when the node is about to be used.
-     * So what it will do (in theory) is to start the vm (if
-     * needed), then find a way to link to the vm, and run slave.jar on the vm
-     *
-     * @param slaveComputer the node to be launched
-     * @param taskListener listener
+     * Delete the clone prepared for the next connection, once it is created
      */
-    @Override
-    public void launch(SlaveComputer slaveComputer, TaskListener taskListener)
-                                     throws IOException, InterruptedException {
-
-        OVirtVMSlave slave = (OVirtVMSlave) slaveComputer.getNode();
-
-        printLog(taskListener, "Connecting to ovirt server...");
-        VM vm = OVirtHypervisor.find(hypervisorDescription)
-                               .getVM(virtualMachineName);
-
-        try {
-            // only if snapshot is specified should we try to shut it down
-            // and revert to snapshot
-            if (isSnapshotSpecified()) {
-                putVMDown(vm, taskListener);
-                revertSnapshot(vm, slave.getSnapshotName(), taskListener);
-                waitTillSnapshotUnlocked(taskListener);
+    private void discardNextClone() {
+        final Future<String> next;
+        synchronized (this) {
+            next = nextClone;
+            nextClone = null;
+        }
+        if (next == null) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    String name = next.get();
+                    OVirtHypervisor.find(hypervisorDescription).destroyVM(name);
+                    forget(name);
+                } catch (ExecutionException e) {
+                    // no clone was created, or it was deleted already
+                }
+                return null;
             }
-            putVMUp(vm, taskListener);
+        });
+    }
 
-            delegateLauncher.launch(slaveComputer, taskListener);
-        } catch (Exception e) {
-            handleLaunchFailure(e, taskListener);
-        }
+    /**
+     * The node is being removed and its vm deleted: the vm won't be torn down
+     * once the node disconnected.
+     */
+    void terminated() {
+        terminated = true;
     }
 
-    private void waitTillSnapshotUnlocked(TaskListener taskListener) throws InterruptedException {
-        while(true) {
-            if (isVMImageLocked()) {
-               printLog(taskListener, "VM is image locked. Waiting till it's really down...");
-               Thread.sleep(WAITING_TIME_MILLISECS);
-            } else {
-                break;
-            }
-        }
+    /**
+     * Forget the state kept about a vm which is being deleted
+     */
+    private void forget(String vmName) {
+        VMLifecycle.forget(hypervisorDescription, vmName);
+        OVirtHypervisor.find(hypervisorDescription).getIpResolver()
+                       .forget(vmName);
     }
 
     /**
@@ -384,28 +497,40 @@ public class OVirtVMLauncher extends ComputerLauncher {
      * @param listener listener
      */
     @Override
-    public synchronized void beforeDisconnect(SlaveComputer computer,
-                                              TaskListener listener) {
+    public void beforeDisconnect(SlaveComputer computer,
+                                 TaskListener listener) {
         delegateLauncher.beforeDisconnect(computer, listener);
     }
 
     /**
-     * Try to shutdown the computer after the slave.jar has stopped running.
+     * Shutdown the computer after the slave.jar has stopped running, and
+     * revert it to its snapshot if 'revertOnRelease' is set. This is done in
+     * the background by the TeardownQueue, so that the thread disconnecting
+     * the node does not wait for it. In disposable clone mode, the clone is
+     * deleted instead. The vm of a terminated cloud node is left alone, as it
+     * is being deleted.
      *
      * @param computer node that has been disconnected
      * @param listener listener
      */
     @Override
-    public synchronized void afterDisconnect(SlaveComputer computer,
-                                             TaskListener listener) {
-        VM vm = OVirtHypervisor.find(hypervisorDescription)
-                .getVM(virtualMachineName);
-        try {
-            printLog(listener, "Shutting down...");
-            shutdownVM(vm);
-        } catch(Exception e) {
-            printLog(listener, "Error while shutting down VM");
-            printLog(listener, e.getMessage());
+    public void afterDisconnect(SlaveComputer computer,
+                                TaskListener listener) {
+        if (terminated) {
+            // the vm is deleted along with the node
+            forget(getCurrentVMName());
+        } else if (isCloneMode()) {
+            recycleClone(computer.getName(), listener);
+        } else {
+            VMLifecycle.of(hypervisorDescription, virtualMachineName).drain();
+            printLog(listener, "Shutting down"
+                     + (isRevertedOnRelease() ? " and reverting to snapshot '"
+                                                + snapshotName + "'" : "")
+                     + " in the background...");
+            TeardownQueue.get().submit(hypervisorDescription,
+                    virtualMachineName,
+                    isRevertedOnRelease() ? snapshotName : null,
+                    getWaitStrategy());
         }
         delegateLauncher.afterDisconnect(computer, listener);
     }
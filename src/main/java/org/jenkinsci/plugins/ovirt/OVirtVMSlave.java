@@ -12,13 +12,13 @@ import hudson.slaves.ComputerLauncher;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.ListBoxModel;
 import org.kohsuke.stapler.QueryParameter;
-import org.ovirt.engine.sdk.decorators.VM;
-import org.ovirt.engine.sdk.decorators.VMSnapshot;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * OVirtVMSlave is used to represent a node. It uses OVirtHypervisor
@@ -30,6 +30,9 @@ import java.util.List;
  */
 public class OVirtVMSlave extends Slave {
 
+    private static final Logger LOGGER =
+            Logger.getLogger(OVirtVMSlave.class.getName());
+
     /**
      * We need to save most of these information so that we can retrieve them
      * back later when we 'edit' a node.
@@ -44,6 +47,25 @@ public class OVirtVMSlave extends Slave {
     private int waitSec;
 
     private int retries;
+    private WaitStrategy waitStrategy;
+    private String cloneTemplateName;
+    private boolean revertOnRelease;
+
+    public OVirtVMSlave(String name, String nodeDescription, String remoteFS,
+                        String numExecutors, Mode mode, String labelString,
+                        ComputerLauncher delegateLauncher,
+                        RetentionStrategy retentionStrategy,
+                        String hypervisorDescription, String snapshotName,
+                        int waitSec, int retries,
+                        WaitStrategy waitStrategy,
+                        String virtualMachineName,
+                        List<? extends NodeProperty<?>> nodeProperties)
+                throws Descriptor.FormException, IOException {
+        this(name, nodeDescription, remoteFS, numExecutors, mode, labelString,
+             delegateLauncher, retentionStrategy, hypervisorDescription,
+             snapshotName, waitSec, retries, waitStrategy, "", false,
+             virtualMachineName, nodeProperties);
+    }
 
     /**
      * The constructor for OVIrtVMSlave. Even though it has tons of parameters,
@@ -62,6 +84,13 @@ public class OVirtVMSlave extends Slave {
      * @param snapshotName the snapshot used
      * @param waitSec how many seconds to wait before retrying
      * @param retries how many retries to do
+     * @param waitStrategy how to wait for the vm to boot/shutdown. If null,
+     *                     waitSec and retries are used
+     * @param cloneTemplateName if not empty, each connection uses a new
+     *                          disposable vm created from that template,
+     *                          instead of the vm and snapshot
+     * @param revertOnRelease revert the vm to the snapshot once the node
+     *                        disconnects, instead of when it launches
      * @param virtualMachineName the name of the ovirt vm
      * @param nodeProperties the node properties
      *
@@ -75,13 +104,17 @@ public class OVirtVMSlave extends Slave {
                         RetentionStrategy retentionStrategy,
                         String hypervisorDescription, String snapshotName,
                         int waitSec, int retries,
+                        WaitStrategy waitStrategy,
+                        String cloneTemplateName,
+                        boolean revertOnRelease,
                         String virtualMachineName,
                         List<? extends NodeProperty<?>> nodeProperties)
                 throws Descriptor.FormException, IOException {
         super(name, nodeDescription, remoteFS, numExecutors, mode, labelString,
               new OVirtVMLauncher(delegateLauncher, hypervisorDescription,
                                   virtualMachineName, snapshotName,
-                                  waitSec, retries),
+                                  waitSec, retries, waitStrategy,
+                                  cloneTemplateName, revertOnRelease),
               retentionStrategy,
               nodeProperties);
 
@@ -90,6 +123,9 @@ public class OVirtVMSlave extends Slave {
         this.virtualMachineName = virtualMachineName;
         this.waitSec = waitSec;
         this.retries = retries;
+        this.waitStrategy = waitStrategy;
+        this.cloneTemplateName = cloneTemplateName;
+        this.revertOnRelease = revertOnRelease;
         this.delegateLauncher = delegateLauncher;
     }
 
@@ -114,10 +150,33 @@ public class OVirtVMSlave extends Slave {
         return retries;
     }
 
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
     public ComputerLauncher getDelegateLauncher() {
         return delegateLauncher;
     }
 
+    public String getCloneTemplateName() {
+        return cloneTemplateName == null ? "" : cloneTemplateName;
+    }
+
+    public boolean isRevertOnRelease() {
+        return revertOnRelease;
+    }
+
+    /**
+     * @return the vm this node runs on right now: in disposable clone mode,
+     * the clone of the current connection, or else the configured vm
+     */
+    public String getCurrentVMName() {
+        if (getLauncher() instanceof OVirtVMLauncher) {
+            return ((OVirtVMLauncher) getLauncher()).getCurrentVMName();
+        }
+        return virtualMachineName;
+    }
+
 
     /**
      * Receives notifications about status changes of Computers.
@@ -148,6 +207,11 @@ public class OVirtVMSlave extends Slave {
     @Extension
     public static final class SlaveDescriptorImpl extends SlaveDescriptor {
 
+        /**
+         * How many vm names a search returns when no maximum is given
+         */
+        private static final int DEFAULT_SEARCH_MAX = 100;
+
         public SlaveDescriptorImpl() {
             load(); // load the data from the disk into this object
         }
@@ -239,20 +303,64 @@ public class OVirtVMSlave extends Slave {
         }
 
         /**
-         * Get all vms from this hypervisor
+         * Search the vms of this hypervisor as the user types, to fill the
+         * dropdown menu with the matching ones only
+         *
+         * @param hypervisor the hypervisor description
+         * @param filter only the vm names containing this, ignoring case
+         * @param offset how many matching vm names to skip
+         * @param max how many vm names to return at most
+         * @return the matching vm names
+         */
+        public ListBoxModel doSearchVMNames(@QueryParameter("hypervisor")
+                                            String hypervisor,
+                                            @QueryParameter("q")
+                                            String filter,
+                                            @QueryParameter("offset")
+                                            int offset,
+                                            @QueryParameter("max")
+                                            int max) {
+            ListBoxModel m = new ListBoxModel();
+            OVirtHypervisor hype = find(hypervisor);
+            if (hype == null) {
+                return m;
+            }
+            for (String vmName : hype.searchVMNames(filter, Math.max(offset, 0),
+                    max > 0 ? max : DEFAULT_SEARCH_MAX)) {
+                m.add(vmName, vmName);
+            }
+            return m;
+        }
+
+        /**
+         * Get all vms from this hypervisor. They come from the inventory
+         * cache of the hypervisor, even if it expired, so that the page
+         * renders right away.
          *
          * @param hypervisor the hypervisor selected
          * @return list of vms
          */
         public List<String> getVMNamesList(final String hypervisor) {
-            List<String> vmNames = new LinkedList<String>();
+            return getVMNamesList(hypervisor, null);
+        }
 
-            if (hypervisor == null) {
-                return vmNames;
+        /**
+         * Get all vms from this hypervisor, making sure the vm of the node
+         * being configured is there, even if the vms are still loading.
+         *
+         * @param hypervisor the hypervisor selected
+         * @param selected the vm of the node, or null
+         * @return list of vms
+         */
+        public List<String> getVMNamesList(final String hypervisor,
+                                           final String selected) {
+            List<String> vmNames = new ArrayList<String>();
+            OVirtHypervisor hype = find(hypervisor);
+            if (hype != null) {
+                vmNames.addAll(hype.peekVMNames());
             }
-            OVirtHypervisor hype = OVirtHypervisor.getAll().get(hypervisor);
-            for (String vmName: hype.getVMNames()) {
-                vmNames.add(vmName);
+            if (selected != null && !vmNames.contains(selected)) {
+                vmNames.add(0, selected);
             }
             return vmNames;
         }
@@ -281,7 +389,9 @@ public class OVirtVMSlave extends Slave {
         }
 
         /**
-         * Get all the snapshots corresponding to this vm and hypervisor
+         * Get all the snapshots corresponding to this vm and hypervisor.
+         * They are cached by the hypervisor, and served even once expired
+         * while they are reloaded.
          *
          * @param vm vm whose snapshots are to be found
          * @param hypervisor vm belonging to this hypervisor
@@ -289,27 +399,47 @@ public class OVirtVMSlave extends Slave {
          */
         public List<String> getSnapshotNamesList(final String vm,
                                                  final String hypervisor) {
+            return getSnapshotNamesList(vm, hypervisor, null);
+        }
+
+        /**
+         * Get all the snapshots corresponding to this vm and hypervisor,
+         * making sure the snapshot of the node being configured is there,
+         * even if the snapshots are still loading.
+         *
+         * @param vm vm whose snapshots are to be found
+         * @param hypervisor vm belonging to this hypervisor
+         * @param selected the snapshot of the node, or null
+         * @return list of snapshots for that vm
+         */
+        public List<String> getSnapshotNamesList(final String vm,
+                                                 final String hypervisor,
+                                                 final String selected) {
 
-            List<String> snapshotNames = new LinkedList<String>();
+            List<String> snapshotNames = new ArrayList<String>();
 
             // add an empty snapshot option
             snapshotNames.add("");
 
-            if (vm == null || hypervisor == null) {
-                return snapshotNames;
+            OVirtHypervisor hype = find(hypervisor);
+            if (vm != null && hype != null) {
+                snapshotNames.addAll(hype.peekSnapshotNames(vm));
+            }
+            if (selected != null && !snapshotNames.contains(selected)) {
+                snapshotNames.add(selected);
             }
-
-            OVirtHypervisor hype = OVirtHypervisor.getAll().get(hypervisor);
-            VM vmi = hype.getVM(vm);
-
-            try {
-                for (VMSnapshot snapshot: vmi.getSnapshots().list()) {
-                    snapshotNames.add(snapshot.getDescription());
-                }
-                /** FIXME: empty catch name */
-            } catch (Exception e) {}
             return snapshotNames;
         }
 
+        private static OVirtHypervisor find(String hypervisor) {
+            if (hypervisor == null) {
+                return null;
+            }
+            OVirtHypervisor hype = OVirtHypervisor.getAll().get(hypervisor);
+            if (hype == null) {
+                LOGGER.log(Level.FINE, "No hypervisor " + hypervisor);
+            }
+            return hype;
+        }
     }
 }
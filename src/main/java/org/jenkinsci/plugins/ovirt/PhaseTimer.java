@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.ovirt;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PhaseTimer measures how long each phase of a launch takes, e.g waiting for
+ * the ip of the vm, then for its ssh server, etc. Starting a phase ends the
+ * current one. A phase entered more than once, e.g when a probe goes back to
+ * waiting for the port, adds up.
+ *
+ * Not thread safe: a timer belongs to one launch.
+ */
+public class PhaseTimer {
+
+    private final Map<String, Long> durations =
+            new LinkedHashMap<String, Long>();
+    private String current;
+    private long currentSince;
+
+    /**
+     * End the current phase, if any, and start that one.
+     *
+     * @param phase name of the phase
+     */
+    public void start(String phase) {
+        stop();
+        current = phase;
+        currentSince = System.currentTimeMillis();
+    }
+
+    /**
+     * End the current phase, if any.
+     */
+    public void stop() {
+        if (current == null) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - currentSince;
+        Long before = durations.get(current);
+        durations.put(current, before == null ? elapsed : before + elapsed);
+        current = null;
+    }
+
+    /**
+     * @return the milliseconds spent in each phase ended so far, in the
+     * order the phases were first entered
+     */
+    public Map<String, Long> getDurations() {
+        return Collections.unmodifiableMap(durations);
+    }
+
+    /**
+     * @return e.g "ip 3.2s, tcp 0.4s, banner 0.0s"
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> phase : durations.entrySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(phase.getKey()).append(' ')
+                .append(phase.getValue() / 1000).append('.')
+                .append(phase.getValue() % 1000 / 100).append('s');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.model.Computer;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RefreshingCache keeps values which are slow to get from the ovirt server,
+ * e.g the snapshots of a vm, for the UI. Values are served from the cache
+ * even once they expired, while a new value is loaded in the background
+ * (stale-while-revalidate), so that pages render right away. Only a value
+ * never loaded before is waited for, and at most 'maxWaitMillis'.
+ *
+ * There is at most one load in flight per key.
+ *
+ * @param <V> the values cached
+ */
+public class RefreshingCache<V> {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(RefreshingCache.class.getName());
+
+    /**
+     * Loads the value of a key from the ovirt server
+     */
+    public interface Loader<V> {
+        V load(String key) throws Exception;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long loadedAt;
+
+        private Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final Loader<V> loader;
+    private final long ttlMillis;
+    private final Map<String, Entry<V>> entries =
+            new ConcurrentHashMap<String, Entry<V>>();
+    private final Map<String, FutureTask<V>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * @param loader how to load the values
+     * @param ttlSecs how long a value is served before being reloaded
+     */
+    public RefreshingCache(Loader<V> loader, int ttlSecs) {
+        this.loader = loader;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(ttlSecs, 0));
+    }
+
+    /**
+     * @param key what to get
+     * @param maxWaitMillis how long to wait if the value was never loaded
+     * @return the cached value, possibly stale, or null if it is still
+     * loading
+     * @throws Exception the value could not be loaded
+     */
+    public V get(String key, long maxWaitMillis) throws Exception {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (System.currentTimeMillis() - entry.loadedAt >= ttlMillis) {
+                load(key);
+            }
+            return entry.value;
+        }
+
+        try {
+            return load(key).get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Forget the value of that key; the next get will wait for a new one.
+     *
+     * @param key what to forget
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Start loading the value of the key in the background, unless it is
+     * already being loaded.
+     */
+    private FutureTask<V> load(final String key) {
+        FutureTask<V> task;
+        synchronized (inFlight) {
+            task = inFlight.get(key);
+            if (task != null) {
+                return task;
+            }
+            task = new FutureTask<V>(new Callable<V>() {
+                public V call() throws Exception {
+                    try {
+                        V value = loader.load(key);
+                        entries.put(key, new Entry<V>(value,
+                                System.currentTimeMillis()));
+                        return value;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Could not load " + key, e);
+                        throw e;
+                    } finally {
+                        inFlight.remove(key);
+                    }
+                }
+            });
+            inFlight.put(key, task);
+        }
+        Computer.threadPoolForRemoting.submit(task);
+        return task;
+    }
+}
@@ -43,8 +43,18 @@ import hudson.util.IOException2;
  * @author Kohsuke Kawaguchi
  */
 public class SFTPClient extends SFTPv3Client {
+    /**
+     * How many 32KB reads or writes are kept in flight by the streams of
+     * writeToFile and read. 1 sends them one at a time, like SFTPv3Client.
+     */
+    private static final int WINDOW = Integer.getInteger(
+            SFTPClient.class.getName() + ".window", 16);
+
+    private final Connection conn;
+
     public SFTPClient(Connection conn) throws IOException {
         super(conn);
+        this.conn = conn;
     }
 
     /**
@@ -92,6 +102,9 @@ public class SFTPClient extends SFTPv3Client {
      * Creates a new file and writes to it.
      */
     public OutputStream writeToFile(String path) throws IOException {
+        if (WINDOW > 1) {
+            return new SFTPPipeline(conn).create(path, -1, WINDOW);
+        }
         final SFTPv3FileHandle h = createFile(path);
         return new OutputStream() {
             private long offset = 0;
@@ -113,6 +126,9 @@ public class SFTPClient extends SFTPv3Client {
     }
 
     public InputStream read(String file) throws IOException {
+        if (WINDOW > 1) {
+            return new SFTPPipeline(conn).open(file, WINDOW);
+        }
         final SFTPv3FileHandle h = openFileRO(file);
         return new InputStream() {
             private long offset = 0;
@@ -0,0 +1,456 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SFTPPipeline is a minimal SFTP v3 client which keeps many read or write
+ * requests in flight, instead of waiting for the answer to each one before
+ * sending the next like SFTPv3Client does. A file is then transferred in
+ * about one round trip per 'window' chunks rather than one per chunk, which
+ * matters for vms in distant data centers.
+ *
+ * It runs its own sftp subsystem session, and handles one file at a time:
+ * the stream returned by create or open closes the pipeline when closed.
+ *
+ * @see SFTPClient#writeToFile(String)
+ */
+class SFTPPipeline {
+
+    /**
+     * Bytes per read or write request. Servers must accept packets of at
+     * least 32768 bytes of data.
+     */
+    static final int CHUNK_SIZE = 32768;
+
+    private static final int SSH_FXP_INIT = 1;
+    private static final int SSH_FXP_VERSION = 2;
+    private static final int SSH_FXP_OPEN = 3;
+    private static final int SSH_FXP_CLOSE = 4;
+    private static final int SSH_FXP_READ = 5;
+    private static final int SSH_FXP_WRITE = 6;
+    private static final int SSH_FXP_STATUS = 101;
+    private static final int SSH_FXP_HANDLE = 102;
+    private static final int SSH_FXP_DATA = 103;
+
+    private static final int SSH_FXF_READ = 0x01;
+    private static final int SSH_FXF_WRITE = 0x02;
+    private static final int SSH_FXF_CREAT = 0x08;
+    private static final int SSH_FXF_TRUNC = 0x10;
+
+    private static final int SSH_FILEXFER_ATTR_PERMISSIONS = 0x04;
+
+    private static final int SSH_FX_OK = 0;
+    private static final int SSH_FX_EOF = 1;
+
+    /**
+     * An answer of the server
+     */
+    private static final class Response {
+        private final int type;
+        private final int id;
+        private final DataInputStream body;
+
+        private Response(int type, int id, DataInputStream body) {
+            this.type = type;
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    private final Session session;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int nextId = 1;
+
+    SFTPPipeline(Connection connection) throws IOException {
+        session = connection.openSession();
+        try {
+            session.startSubSystem("sftp");
+            in = new DataInputStream(new BufferedInputStream(
+                    session.getStdout(), CHUNK_SIZE + 1024));
+            out = new DataOutputStream(new BufferedOutputStream(
+                    session.getStdin(), CHUNK_SIZE + 1024));
+
+            out.writeInt(5);
+            out.writeByte(SSH_FXP_INIT);
+            out.writeInt(3);
+            out.flush();
+            int length = in.readInt();
+            int type = in.readUnsignedByte();
+            skip(length - 1);
+            if (type != SSH_FXP_VERSION) {
+                throw new IOException("Unexpected sftp packet " + type
+                                      + " instead of the version");
+            }
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the file, or truncate it if it exists, and get a stream writing
+     * to it with up to 'window' writes in flight.
+     *
+     * @param path the remote file
+     * @param permissions posix permissions of the file if created, or -1
+     * for the server default
+     * @param window how many writes may wait for their answer
+     * @return the stream writing to the file
+     * @throws IOException the file could not be created
+     */
+    OutputStream create(String path, int permissions, final int window)
+                                                        throws IOException {
+        final byte[] handle = openOrClose(path,
+                SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC, permissions);
+
+        return new OutputStream() {
+            private final byte[] chunk = new byte[CHUNK_SIZE];
+            private int filled = 0;
+            private long offset = 0;
+            private final Set<Integer> inFlight = new HashSet<Integer>();
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, chunk.length - filled);
+                    System.arraycopy(b, off, chunk, filled, n);
+                    filled += n;
+                    off += n;
+                    len -= n;
+                    if (filled == chunk.length) {
+                        sendChunk();
+                    }
+                }
+            }
+
+            private void sendChunk() throws IOException {
+                while (inFlight.size() >= Math.max(window, 1)) {
+                    awaitStatus(inFlight);
+                }
+                int id = nextId++;
+                Packet packet = new Packet(SSH_FXP_WRITE, id);
+                packet.writeString(handle);
+                packet.data.writeLong(offset);
+                packet.data.writeInt(filled);
+                packet.data.write(chunk, 0, filled);
+                send(packet);
+                inFlight.add(id);
+                offset += filled;
+                filled = 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (filled > 0) {
+                        sendChunk();
+                    }
+                    while (!inFlight.isEmpty()) {
+                        awaitStatus(inFlight);
+                    }
+                    closeHandle(handle);
+                } finally {
+                    session.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Get a stream reading the file, with up to 'window' reads ahead of what
+     * was consumed.
+     *
+     * @param path the remote file
+     * @param window how many reads may wait for their answer
+     * @return the stream reading the file
+     * @throws IOException the file could not be opened
+     */
+    InputStream open(String path, final int window) throws IOException {
+        final byte[] handle = openOrClose(path, SSH_FXF_READ, -1);
+
+        return new InputStream() {
+            /**
+             * Reads in flight, in file order, as {id, offset, length}
+             */
+            private final LinkedList<long[]> requests = new LinkedList<long[]>();
+            /**
+             * Answers received, by request id: the data, or null at the end
+             * of the file
+             */
+            private final Map<Integer, byte[]> answers =
+                    new HashMap<Integer, byte[]>();
+            private long nextOffset = 0;
+            private boolean eof = false;
+            private byte[] current = new byte[0];
+            private int position = 0;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (position == current.length) {
+                    if (!fill()) {
+                        return -1;
+                    }
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            /**
+             * @return false at the end of the file
+             */
+            private boolean fill() throws IOException {
+                if (eof) {
+                    return false;
+                }
+                while (!eof && requests.size() < Math.max(window, 1)) {
+                    request(nextOffset, CHUNK_SIZE, false);
+                    nextOffset += CHUNK_SIZE;
+                }
+                if (requests.isEmpty()) {
+                    return false;
+                }
+
+                long[] head = requests.getFirst();
+                int id = (int) head[0];
+                while (!answers.containsKey(id)) {
+                    receiveData();
+                }
+                requests.removeFirst();
+                byte[] data = answers.remove(id);
+                if (data == null) {
+                    // nothing beyond that offset either; the reads still in
+                    // flight are drained by close()
+                    eof = true;
+                    return false;
+                }
+                if (data.length < head[2]) {
+                    // short read: ask for the rest of that chunk first
+                    request(head[1] + data.length, head[2] - data.length,
+                            true);
+                }
+                current = data;
+                position = 0;
+                return true;
+            }
+
+            private void request(long offset, long length, boolean first)
+                                                        throws IOException {
+                int id = nextId++;
+                Packet packet = new Packet(SSH_FXP_READ, id);
+                packet.writeString(handle);
+                packet.data.writeLong(offset);
+                packet.data.writeInt((int) length);
+                send(packet);
+                long[] request = new long[]{id, offset, length};
+                if (first) {
+                    requests.addFirst(request);
+                } else {
+                    requests.addLast(request);
+                }
+            }
+
+            private void receiveData() throws IOException {
+                Response response = receive();
+                if (response.type == SSH_FXP_DATA) {
+                    byte[] data = new byte[response.body.readInt()];
+                    response.body.readFully(data);
+                    answers.put(response.id, data);
+                } else if (response.type == SSH_FXP_STATUS) {
+                    int code = response.body.readInt();
+                    if (code != SSH_FX_EOF) {
+                        throw statusError(code, response.body);
+                    }
+                    answers.put(response.id, null);
+                } else {
+                    throw new IOException("Unexpected sftp packet "
+                                          + response.type);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    // answers of the reads ahead still come before the close
+                    while (!requests.isEmpty()) {
+                        long[] request = requests.removeFirst();
+                        while (!answers.containsKey((int) request[0])) {
+                            receiveData();
+                        }
+                        answers.remove((int) request[0]);
+                    }
+                    closeHandle(handle);
+                } finally {
+                    session.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Open the file, or close the session if it can't be.
+     */
+    private byte[] openOrClose(String path, int flags, int permissions)
+                                                        throws IOException {
+        try {
+            return open(path, flags, permissions);
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    private byte[] open(String path, int flags, int permissions)
+                                                        throws IOException {
+        int id = nextId++;
+        Packet packet = new Packet(SSH_FXP_OPEN, id);
+        packet.writeString(path.getBytes("UTF-8"));
+        packet.data.writeInt(flags);
+        if (permissions >= 0) {
+            packet.data.writeInt(SSH_FILEXFER_ATTR_PERMISSIONS);
+            packet.data.writeInt(permissions);
+        } else {
+            packet.data.writeInt(0);
+        }
+        send(packet);
+
+        Response response = receive();
+        if (response.id != id) {
+            throw new IOException("Unexpected answer to sftp request " + id);
+        }
+        if (response.type == SSH_FXP_STATUS) {
+            throw statusError(response.body.readInt(), response.body);
+        }
+        if (response.type != SSH_FXP_HANDLE) {
+            throw new IOException("Unexpected sftp packet " + response.type);
+        }
+        byte[] handle = new byte[response.body.readInt()];
+        response.body.readFully(handle);
+        return handle;
+    }
+
+    private void closeHandle(byte[] handle) throws IOException {
+        int id = nextId++;
+        Packet packet = new Packet(SSH_FXP_CLOSE, id);
+        packet.writeString(handle);
+        send(packet);
+        Set<Integer> inFlight = new HashSet<Integer>();
+        inFlight.add(id);
+        awaitStatus(inFlight);
+    }
+
+    /**
+     * Wait for the status of one of those requests, and remove it from them.
+     *
+     * @throws IOException the request failed
+     */
+    private void awaitStatus(Set<Integer> inFlight) throws IOException {
+        Response response = receive();
+        if (response.type != SSH_FXP_STATUS
+                || !inFlight.remove(response.id)) {
+            throw new IOException("Unexpected sftp packet " + response.type
+                                  + " for request " + response.id);
+        }
+        int code = response.body.readInt();
+        if (code != SSH_FX_OK) {
+            throw statusError(code, response.body);
+        }
+    }
+
+    private static IOException statusError(int code, DataInputStream body)
+                                                        throws IOException {
+        byte[] message = new byte[body.readInt()];
+        body.readFully(message);
+        return new IOException("sftp error " + code + ": "
+                               + new String(message, "UTF-8"));
+    }
+
+    private void send(Packet packet) throws IOException {
+        out.writeInt(packet.bytes.size());
+        packet.bytes.writeTo(out);
+        out.flush();
+    }
+
+    private Response receive() throws IOException {
+        int length = in.readInt();
+        byte[] packet = new byte[length];
+        in.readFully(packet);
+        DataInputStream body = new DataInputStream(
+                new ByteArrayInputStream(packet));
+        int type = body.readUnsignedByte();
+        int id = body.readInt();
+        return new Response(type, id, body);
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * A request being written: type, id, then the fields added to 'data'
+     */
+    private static final class Packet {
+        private final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(CHUNK_SIZE + 64);
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        private Packet(int type, int id) throws IOException {
+            data.writeByte(type);
+            data.writeInt(id);
+        }
+
+        private void writeString(byte[] value) throws IOException {
+            data.writeInt(value.length);
+            data.write(value);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import hudson.model.Computer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.entities.GuestInfo;
+import org.ovirt.engine.sdk.entities.IP;
+
+/**
+ * SdkHypervisorClient talks to the ovirt server of a hypervisor through the
+ * ovirt sdk. The blocking sdk calls run on the remoting thread pool of
+ * Jenkins, and go through the inventory, the snapshot index and the session
+ * pool of the hypervisor like the rest of the plugin.
+ */
+public class SdkHypervisorClient implements HypervisorClient {
+
+    private static final ListeningExecutorService EXECUTOR =
+            MoreExecutors.listeningDecorator(Computer.threadPoolForRemoting);
+
+    private final OVirtHypervisor hypervisor;
+
+    public SdkHypervisorClient(OVirtHypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    public ListenableFuture<List<VMInfo>> list() {
+        return EXECUTOR.submit(new Callable<List<VMInfo>>() {
+            public List<VMInfo> call() throws Exception {
+                List<VMInfo> vms = new ArrayList<VMInfo>();
+                for (VM vm : hypervisor.getInventory().list()) {
+                    vms.add(toInfo(vm));
+                }
+                return vms;
+            }
+        });
+    }
+
+    public ListenableFuture<VMInfo> get(final String vmName) {
+        return EXECUTOR.submit(new Callable<VMInfo>() {
+            public VMInfo call() {
+                VM vm = hypervisor.getFreshVM(vmName);
+                return vm == null ? null : toInfo(vm);
+            }
+        });
+    }
+
+    public ListenableFuture<Map<String, String>> status(
+                                            final Collection<String> vmNames) {
+        return EXECUTOR.submit(new Callable<Map<String, String>>() {
+            public Map<String, String> call() throws Exception {
+                return hypervisor.getVMStates(vmNames);
+            }
+        });
+    }
+
+    public ListenableFuture<Void> start(final String vmName) {
+        return EXECUTOR.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                hypervisor.startVM(find(vmName).getId());
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<Void> shutdown(final String vmName) {
+        return EXECUTOR.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                hypervisor.shutdownVM(find(vmName).getId());
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<Void> restore(final String vmName,
+                                          final String snapshotDescription) {
+        return EXECUTOR.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                hypervisor.restoreSnapshot(find(vmName).getId(),
+                                           snapshotDescription);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<List<String>> guestInfo(final String vmName) {
+        return EXECUTOR.submit(new Callable<List<String>>() {
+            public List<String> call() {
+                VM vm = hypervisor.getFreshVM(vmName);
+                if (vm == null) {
+                    throw notFound(vmName);
+                }
+                List<String> addresses = new ArrayList<String>();
+                GuestInfo info = vm.getGuestInfo();
+                if (info != null && info.getIps() != null
+                        && info.getIps().getIPs() != null) {
+                    for (IP ip : info.getIps().getIPs()) {
+                        addresses.add(ip.getAddress());
+                    }
+                }
+                return addresses;
+            }
+        });
+    }
+
+    private VM find(String vmName) {
+        VM vm = hypervisor.getVM(vmName);
+        if (vm == null) {
+            throw notFound(vmName);
+        }
+        return vm;
+    }
+
+    private static IllegalStateException notFound(String vmName) {
+        return new IllegalStateException("VM '" + vmName + "' not found");
+    }
+
+    private static VMInfo toInfo(VM vm) {
+        String state = vm.getStatus() == null ? null
+                : vm.getStatus().getState().toLowerCase();
+        return new VMInfo(vm.getId(), vm.getName(), state,
+                          vm.getDescription());
+    }
+}
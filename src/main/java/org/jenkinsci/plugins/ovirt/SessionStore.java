@@ -0,0 +1,421 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.XmlFile;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.xml.bind.DatatypeConverter;
+
+import org.ovirt.engine.sdk.Api;
+
+/**
+ * SessionStore remembers the sessions opened on each ovirt server for each
+ * user, so that new Api objects reuse them instead of logging in again,
+ * which can be slow, e.g when the engine authenticates against an SSO.
+ *
+ * Each Api object gets a session of its own: a stored session is claimed by
+ * the Api object opened with it, and only handed out again once it is
+ * closed, e.g by the ApiPool. So the sessions of a pool don't share their
+ * expiry, and closing one of them leaves the others alone.
+ *
+ * The sessions are saved, encrypted, in the Jenkins home directory so that
+ * they survive restarts; set the system property
+ * 'org.jenkinsci.plugins.ovirt.SessionStore.persist' to false to keep them
+ * in memory only. A stored session is only used if the ovirt server still
+ * accepts it; otherwise a new one is opened. The sessions of a user are
+ * forgotten once its password changes.
+ *
+ * @see ApiPool
+ */
+public class SessionStore {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SessionStore.class.getName());
+
+    private static final boolean PERSIST = Boolean.parseBoolean(
+            System.getProperty(SessionStore.class.getName() + ".persist",
+                               "true"));
+
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private static SessionStore instance;
+
+    /**
+     * The sessions opened on one ovirt server for one user
+     */
+    private static final class UserSessions {
+        /**
+         * The password they were opened with
+         */
+        private Secret password;
+        private final List<Secret> ids = new ArrayList<Secret>();
+
+        private UserSessions(String password) {
+            this.password = Secret.fromString(password);
+        }
+    }
+
+    /**
+     * An Api object opened by the store, and the session it uses
+     */
+    public static final class OpenedSession {
+        private final Api api;
+        private final String sessionId;
+
+        private OpenedSession(Api api, String sessionId) {
+            this.api = api;
+            this.sessionId = sessionId;
+        }
+
+        public Api getApi() {
+            return api;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+    }
+
+    /**
+     * key is "ovirt url / username"
+     */
+    private final Map<String, UserSessions> userSessions =
+            new HashMap<String, UserSessions>();
+
+    /**
+     * The sessions used by an Api object
+     */
+    private transient Set<String> claimed;
+
+    /**
+     * @return the SessionStore, loaded from disk the first time
+     */
+    public static synchronized SessionStore get() {
+        if (instance == null) {
+            XmlFile file = getConfigFile();
+            try {
+                if (PERSIST && file.exists()) {
+                    instance = (SessionStore) file.read();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not load " + file, e);
+            }
+            if (instance == null) {
+                instance = new SessionStore();
+            }
+        }
+        return instance;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(),
+                                    SessionStore.class.getName() + ".xml"));
+    }
+
+    private static String key(String url, String username) {
+        return url + " / " + username;
+    }
+
+    /**
+     * Open an Api object on the ovirt server, with a stored session of that
+     * user which no other Api object uses, if the server still accepts it,
+     * or else logging in. The session is claimed until it is closed.
+     *
+     * @param url the ovirt api url
+     * @param username user to log in as
+     * @param password password of the user
+     * @return the Api object, and its session
+     * @throws Exception some issue with the ovirt server communication
+     */
+    public OpenedSession open(String url, String username, String password)
+                                                            throws Exception {
+        String sessionId;
+        while ((sessionId = claim(url, username, password)) != null) {
+            try {
+                // the Api gets the entry point of the server right away,
+                // which fails if the session is no longer valid
+                return new OpenedSession(new Api(url, sessionId, true),
+                                         sessionId);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Stored session to " + url
+                                       + " rejected", e);
+                close(url, username, sessionId);
+            }
+        }
+
+        sessionId = login(url, username, password);
+        remember(url, username, password, sessionId);
+        try {
+            return new OpenedSession(new Api(url, sessionId, true), sessionId);
+        } catch (Exception e) {
+            close(url, username, sessionId);
+            throw e;
+        }
+    }
+
+    /**
+     * The session is no longer used, e.g because it expired or was logged
+     * out: forget it.
+     *
+     * @param url the ovirt api url
+     * @param username user the session was opened for
+     * @param sessionId the session id
+     */
+    public void close(String url, String username, String sessionId) {
+        synchronized (this) {
+            claimed().remove(sessionId);
+            UserSessions sessions = userSessions.get(key(url, username));
+            if (sessions == null || !remove(sessions.ids, sessionId)) {
+                return;
+            }
+            if (sessions.ids.isEmpty()) {
+                userSessions.remove(key(url, username));
+            }
+        }
+        save();
+    }
+
+    /**
+     * Check that the user can use the ovirt server: with the stored session
+     * if there is one the server still accepts, or else by logging in.
+     *
+     * @param url the ovirt api url
+     * @param username user to log in as
+     * @param password password of the user
+     * @return true if the stored session was reused
+     * @throws Exception the login failed
+     */
+    public boolean test(String url, String username, String password)
+                                                            throws Exception {
+        String sessionId = claim(url, username, password);
+        if (sessionId != null) {
+            boolean valid = isValid(url, sessionId);
+            synchronized (this) {
+                claimed().remove(sessionId);
+            }
+            if (valid) {
+                return true;
+            }
+            close(url, username, sessionId);
+        }
+        // not remembered, as the credentials tested may not be saved
+        login(url, username, password);
+        return false;
+    }
+
+    private synchronized Set<String> claimed() {
+        if (claimed == null) {
+            claimed = new HashSet<String>();
+        }
+        return claimed;
+    }
+
+    /**
+     * @return a stored session of that user which no Api object uses, or
+     * null if there is none
+     */
+    private String claim(String url, String username, String password) {
+        synchronized (this) {
+            UserSessions sessions = userSessions.get(key(url, username));
+            if (sessions == null) {
+                return null;
+            }
+            if (password.equals(sessions.password.getPlainText())) {
+                for (Secret id : sessions.ids) {
+                    if (claimed().add(id.getPlainText())) {
+                        return id.getPlainText();
+                    }
+                }
+                return null;
+            }
+            // the credentials changed: the sessions still in use are closed
+            // by their pool, which was replaced
+            userSessions.remove(key(url, username));
+        }
+        save();
+        return null;
+    }
+
+    private void remember(String url, String username, String password,
+                          String sessionId) {
+        synchronized (this) {
+            UserSessions sessions = userSessions.get(key(url, username));
+            if (sessions == null
+                    || !password.equals(sessions.password.getPlainText())) {
+                sessions = new UserSessions(password);
+                userSessions.put(key(url, username), sessions);
+            }
+            sessions.ids.add(Secret.fromString(sessionId));
+            claimed().add(sessionId);
+        }
+        save();
+    }
+
+    private static boolean remove(List<Secret> ids, String sessionId) {
+        for (Iterator<Secret> it = ids.iterator(); it.hasNext();) {
+            if (it.next().getPlainText().equals(sessionId)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Log in to the ovirt server, asking for a session which outlives the
+     * request.
+     *
+     * @return the session id
+     * @throws IOException the login failed
+     */
+    private String login(String url, String username, String password)
+                                                            throws IOException {
+        HttpURLConnection connection = connect(url);
+        String credentials = username + ":" + password;
+        connection.setRequestProperty("Authorization", "Basic "
+                + DatatypeConverter.printBase64Binary(
+                        credentials.getBytes("UTF-8")));
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Login to " + url + " failed: " + code
+                                      + " " + connection.getResponseMessage());
+            }
+            String sessionId = getSessionCookie(connection);
+            if (sessionId == null) {
+                throw new IOException(url + " did not open a session");
+            }
+            return sessionId;
+        } finally {
+            close(connection);
+        }
+    }
+
+    private boolean isValid(String url, String sessionId) {
+        try {
+            HttpURLConnection connection = connect(url);
+            connection.setRequestProperty("Cookie",
+                                          SESSION_COOKIE + "=" + sessionId);
+            try {
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                close(connection);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Prepare a request to the api entry point. Like the Api objects of this
+     * plugin, the certificate of the server is not checked.
+     */
+    private static HttpURLConnection connect(String url) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) connection;
+            https.setSSLSocketFactory(insecureSocketFactory());
+            https.setHostnameVerifier(new HostnameVerifier() {
+                public boolean verify(String hostname, SSLSession session) {
+                    return true;
+                }
+            });
+        }
+        connection.setRequestProperty("Prefer", "persistent-auth");
+        connection.setRequestProperty("Accept", "application/xml");
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(60000);
+        return connection;
+    }
+
+    private static SSLSocketFactory insecureSocketFactory() throws IOException {
+        TrustManager trustAll = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] { trustAll }, null);
+            return context.getSocketFactory();
+        } catch (Exception e) {
+            throw new IOException("Could not set up TLS: " + e.getMessage());
+        }
+    }
+
+    private static String getSessionCookie(HttpURLConnection connection) {
+        List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String cookie : cookies) {
+            String[] parts = cookie.split(";")[0].split("=", 2);
+            if (parts.length == 2 && parts[0].trim().equals(SESSION_COOKIE)) {
+                return parts[1].trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the rest of the response, so that the connection can be reused.
+     */
+    private static void close(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getErrorStream();
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+            in.close();
+        } catch (IOException e) {
+            // nothing else to do with that connection
+        }
+    }
+
+    private synchronized void save() {
+        if (!PERSIST) {
+            return;
+        }
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the ovirt sessions", e);
+        }
+    }
+}
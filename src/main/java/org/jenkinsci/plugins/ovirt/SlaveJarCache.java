@@ -0,0 +1,145 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Util;
+import hudson.model.Slave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.kohsuke.stapler.framework.io.IOException2;
+
+/**
+ * SlaveJarCache keeps one copy of the slave jar for all the launches, so
+ * that each launch does not read the whole jar into its own byte array.
+ *
+ * The jar is copied once to a temporary file, which is memory mapped read
+ * only: the launches stream from the mapping, which lives outside of the
+ * heap and is shared by all of them, and scp sends the file itself.
+ */
+public class SlaveJarCache {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static SlaveJarCache instance;
+
+    private final File file;
+    private final MappedByteBuffer mapping;
+    private final String digest;
+
+    private SlaveJarCache(File file, MappedByteBuffer mapping, String digest) {
+        this.file = file;
+        this.mapping = mapping;
+        this.digest = digest;
+    }
+
+    /**
+     * @return the SlaveJarCache, created the first time
+     * @throws IOException the slave jar could not be copied
+     */
+    public static synchronized SlaveJarCache get() throws IOException {
+        if (instance == null) {
+            // the slave jar only changes with Jenkins itself
+            instance = load();
+        }
+        return instance;
+    }
+
+    private static SlaveJarCache load() throws IOException {
+        URL url = new Slave.JnlpJar("slave.jar").getURL();
+        if (url == null) {
+            throw new IOException("slave.jar not found");
+        }
+
+        // scp names the remote file after the local one
+        File dir = File.createTempFile("ovirt-slave-jar", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        dir.deleteOnExit();
+        File file = new File(dir, "slave.jar");
+        file.deleteOnExit();
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException2("Cannot compute the slave jar digest", e);
+        }
+
+        InputStream in = new DigestInputStream(url.openStream(), sha256);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid once the file is closed
+            MappedByteBuffer mapping = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new SlaveJarCache(file, mapping,
+                                     Util.toHexString(sha256.digest()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the local copy of the slave jar, named slave.jar
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the slave jar in bytes
+     */
+    public int getLength() {
+        return mapping.capacity();
+    }
+
+    /**
+     * @return the SHA-256 digest of the slave jar, in hex
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Copy the slave jar to the stream, straight from the mapping.
+     *
+     * @param out where to copy the slave jar
+     * @throws IOException the stream failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        // each copy reads through its own view of the shared mapping
+        ByteBuffer view = mapping.duplicate();
+        byte[] buffer = new byte[Math.min(BUFFER_SIZE * 4, view.capacity())];
+        while (view.hasRemaining()) {
+            int n = Math.min(buffer.length, view.remaining());
+            view.get(buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.jenkinsci.plugins.ovirt;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.ovirt.engine.sdk.decorators.VM;
+import org.ovirt.engine.sdk.decorators.VMSnapshot;
+import org.ovirt.engine.sdk.exceptions.ServerException;
+
+/**
+ * SnapshotIndex remembers which snapshot of a vm has a given description,
+ * so that launches don't have to list all the snapshots of their vm to find
+ * the one to revert to.
+ *
+ * A snapshot can be deleted and another one created with the same
+ * description, so a remembered snapshot is never used blindly: it is fetched
+ * by id, and used only if it still has the same description and creation
+ * date. Otherwise the snapshots of the vm are listed again.
+ */
+public class SnapshotIndex {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SnapshotIndex.class.getName());
+
+    private static final int NOT_FOUND = 404;
+
+    private static final class Entry {
+        private final String snapshotId;
+        private final Long createdAt;
+
+        private Entry(VMSnapshot snapshot) {
+            this.snapshotId = snapshot.getId();
+            this.createdAt = millis(snapshot.getDate());
+        }
+
+        private boolean matches(VMSnapshot snapshot, String description) {
+            if (snapshot == null || !description.equals(snapshot.getDescription())) {
+                return false;
+            }
+            Long date = millis(snapshot.getDate());
+            return createdAt == null ? date == null : createdAt.equals(date);
+        }
+    }
+
+    /**
+     * key is "vm id / snapshot description"
+     */
+    private final Map<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    private static String key(String vmId, String description) {
+        return vmId + " / " + description;
+    }
+
+    private static Long millis(XMLGregorianCalendar date) {
+        return date == null ? null
+                            : date.toGregorianCalendar().getTimeInMillis();
+    }
+
+    /**
+     * Find the snapshot of the vm with that description.
+     *
+     * @param vm the vm
+     * @param description the snapshot description
+     * @return the snapshot
+     * @throws Exception the vm has no such snapshot, or some issue with the
+     * ovirt server communication
+     */
+    public VMSnapshot find(VM vm, String description) throws Exception {
+        String key = key(vm.getId(), description);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            VMSnapshot snapshot = getById(vm, entry.snapshotId);
+            if (entry.matches(snapshot, description)) {
+                return snapshot;
+            }
+            LOGGER.log(Level.FINE, "Snapshot '" + description + "' of vm '"
+                                   + vm.getName() + "' changed, listing again");
+        }
+
+        VMSnapshot found = null;
+        List<VMSnapshot> snapshots = vm.getSnapshots().list();
+        forget(vm.getId());
+        for (VMSnapshot snap : snapshots) {
+            if (snap.getDescription() == null) {
+                continue;
+            }
+            String snapKey = key(vm.getId(), snap.getDescription());
+            if (!entries.containsKey(snapKey)) {
+                // like the launchers always did, the first one listed wins
+                entries.put(snapKey, new Entry(snap));
+            }
+            if (found == null && snap.getDescription().equals(description)) {
+                found = snap;
+            }
+        }
+
+        if (found == null) {
+            // if we reached here, then the snapshot is not bound to that
+            // particular vm
+            throw new RuntimeException("No snapshot '" + description + "' "
+                    + "for vm '" + vm.getName() + "' found");
+        }
+        return found;
+    }
+
+    /**
+     * Forget all the snapshots of a vm
+     *
+     * @param vmId the vm id
+     */
+    public void forget(String vmId) {
+        String prefix = key(vmId, "");
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot, or null if it no longer exists
+     */
+    private static VMSnapshot getById(VM vm, String snapshotId)
+                                                            throws Exception {
+        try {
+            return vm.getSnapshots().getById(snapshotId);
+        } catch (ServerException e) {
+            if (e.getCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+}
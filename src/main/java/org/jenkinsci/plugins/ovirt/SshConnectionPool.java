@@ -0,0 +1,150 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SshConnectionPool keeps the authenticated ssh connections which are no
+ * longer used, e.g after the node disconnected or a launch failed past the
+ * authentication, keyed by user, host and port. The next launch on that host
+ * then skips the readiness probe, the key exchange and the authentication.
+ *
+ * A connection is only handed out again if it is still alive: the server
+ * closing it, e.g because the vm was shut down, removes it from the pool,
+ * and it is checked again before being reused.
+ */
+public class SshConnectionPool {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SshConnectionPool.class.getName());
+
+    /**
+     * How long an unused connection is kept
+     */
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(SshConnectionPool.class.getName()
+                               + ".idleSeconds", 300));
+
+    private static final SshConnectionPool INSTANCE = new SshConnectionPool();
+
+    private static final class Idle {
+        private final Connection connection;
+        private final long since;
+
+        private Idle(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * key is "user@host:port"
+     */
+    private final Map<String, Idle> idle = new HashMap<String, Idle>();
+
+    /**
+     * The connections which got a monitor removing them from the pool once
+     * they are lost
+     */
+    private final Set<Connection> monitored = Collections.newSetFromMap(
+            new WeakHashMap<Connection, Boolean>());
+
+    /**
+     * @return the SshConnectionPool
+     */
+    public static SshConnectionPool get() {
+        return INSTANCE;
+    }
+
+    private static String key(String username, String host, int port) {
+        return username + "@" + host + ":" + port;
+    }
+
+    /**
+     * Take the unused connection to that host, if there is a live one.
+     *
+     * @param username the user the connection is authenticated as
+     * @param host the host
+     * @param port the ssh port
+     * @return the connection, or null if there is none
+     */
+    public Connection take(String username, String host, int port) {
+        Idle entry;
+        synchronized (this) {
+            closeExpired();
+            entry = idle.remove(key(username, host, port));
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            // fails if the transport is already known to be down
+            entry.connection.sendIgnorePacket();
+            return entry.connection;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Pooled connection to " + host
+                                   + " is dead", e);
+            entry.connection.close();
+            return null;
+        }
+    }
+
+    /**
+     * Keep an authenticated connection for the next launch on its host. A
+     * connection already pooled for that host is closed.
+     *
+     * @param username the user the connection is authenticated as
+     * @param connection the connection
+     */
+    public void offer(String username, final Connection connection) {
+        final String key = key(username, connection.getHostname(),
+                               connection.getPort());
+        Idle replaced;
+        boolean monitor;
+        synchronized (this) {
+            closeExpired();
+            replaced = idle.put(key, new Idle(connection,
+                                              System.currentTimeMillis()));
+            monitor = monitored.add(connection);
+        }
+        if (replaced != null && replaced.connection != connection) {
+            replaced.connection.close();
+        }
+        if (monitor) {
+            connection.addConnectionMonitor(new ConnectionMonitor() {
+                public void connectionLost(Throwable reason) {
+                    remove(key, connection);
+                }
+            });
+        }
+    }
+
+    private synchronized void remove(String key, Connection connection) {
+        Idle entry = idle.get(key);
+        if (entry != null && entry.connection == connection) {
+            idle.remove(key);
+        }
+    }
+
+    private synchronized void closeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Idle> it = idle.values().iterator(); it.hasNext();) {
+            Idle entry = it.next();
+            if (now - entry.since >= IDLE_MILLIS) {
+                it.remove();
+                entry.connection.close();
+            }
+        }
+    }
+}
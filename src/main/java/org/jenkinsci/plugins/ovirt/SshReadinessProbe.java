@@ -0,0 +1,201 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * SshReadinessProbe waits for the ssh server of a freshly booted vm to be
+ * ready, in steps that each fail fast:
+ *
+ * - tcp: the ssh port accepts connections
+ * - banner: the ssh server sends its identification string
+ * - kex: the ssh connection is set up
+ *
+ * A failed step is retried after a short delay which doubles each time, up
+ * to 'maxBackoffMillis', and the probe gives up at the deadline. The time
+ * spent in each step is recorded in the PhaseTimer of the launch.
+ *
+ * The delays and timeouts are set through system properties named after
+ * this class, e.g org.jenkinsci.plugins.ovirt.SshReadinessProbe.maxBackoffMillis
+ */
+public class SshReadinessProbe {
+
+    private static final long INITIAL_BACKOFF_MILLIS = Long.getLong(
+            SshReadinessProbe.class.getName() + ".initialBackoffMillis", 250);
+
+    private static final long MAX_BACKOFF_MILLIS = Long.getLong(
+            SshReadinessProbe.class.getName() + ".maxBackoffMillis", 5000);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger(
+            SshReadinessProbe.class.getName() + ".connectTimeoutMillis", 2000);
+
+    private static final int BANNER_TIMEOUT_MILLIS = Integer.getInteger(
+            SshReadinessProbe.class.getName() + ".bannerTimeoutMillis", 5000);
+
+    private static final int KEX_TIMEOUT_MILLIS = Integer.getInteger(
+            SshReadinessProbe.class.getName() + ".kexTimeoutMillis", 30000);
+
+    /**
+     * A server may send a few lines before its identification string
+     */
+    private static final int MAX_BANNER_LINES = 20;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final String host;
+    private final int port;
+    private final long deadline;
+    private final PhaseTimer timer;
+    private final PrintStream logger;
+    private long backoff = INITIAL_BACKOFF_MILLIS;
+
+    /**
+     * @param host address of the vm
+     * @param port ssh port
+     * @param timeoutMillis how long to wait for the ssh server in total
+     * @param timer where to record the time spent in each step
+     * @param logger where to report progress
+     */
+    public SshReadinessProbe(String host, int port, long timeoutMillis,
+                             PhaseTimer timer, PrintStream logger) {
+        this.host = host;
+        this.port = port;
+        this.deadline = System.currentTimeMillis() + timeoutMillis;
+        this.timer = timer;
+        this.logger = logger;
+    }
+
+    /**
+     * Wait for the ssh server to be ready, then set up the ssh connection.
+     *
+     * @param connection the connection to set up
+     * @param verifier checks the host key of the server, or null to accept
+     * any key
+     * @throws IOException the ssh server was not ready by the deadline, or
+     * its host key was refused
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void connect(Connection connection,
+                        final ServerHostKeyVerifier verifier)
+            throws IOException, InterruptedException {
+        final boolean[] refused = {false};
+        ServerHostKeyVerifier checking = verifier == null ? null
+                : new ServerHostKeyVerifier() {
+                    public boolean verifyServerHostKey(String hostname,
+                            int port, String algorithm, byte[] key)
+                            throws Exception {
+                        boolean accepted = verifier.verifyServerHostKey(
+                                hostname, port, algorithm, key);
+                        refused[0] = !accepted;
+                        return accepted;
+                    }
+                };
+
+        while (true) {
+            String banner = awaitBanner();
+            logger.println("SSH server ready: " + banner);
+
+            timer.start("kex");
+            try {
+                connection.connect(checking, CONNECT_TIMEOUT_MILLIS,
+                                   KEX_TIMEOUT_MILLIS);
+                return;
+            } catch (IOException e) {
+                connection.close();
+                if (refused[0]) {
+                    // trying again won't change the key
+                    throw e;
+                }
+                retryAfterBackoff("SSH connection failed: " + e.getMessage(),
+                                  e);
+            }
+        }
+    }
+
+    /**
+     * @return the identification string of the ssh server
+     */
+    private String awaitBanner() throws IOException, InterruptedException {
+        while (true) {
+            timer.start("tcp");
+            Socket socket = new Socket();
+            try {
+                try {
+                    socket.connect(new InetSocketAddress(host, port),
+                                   CONNECT_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    retryAfterBackoff("Port " + port + " of " + host
+                                      + " not open yet", e);
+                    continue;
+                }
+
+                timer.start("banner");
+                try {
+                    socket.setSoTimeout(BANNER_TIMEOUT_MILLIS);
+                    String banner = readBanner(socket.getInputStream());
+                    if (banner != null) {
+                        return banner;
+                    }
+                    retryAfterBackoff("No SSH banner from " + host, null);
+                } catch (IOException e) {
+                    retryAfterBackoff("No SSH banner from " + host, e);
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first line starting with "SSH-", or null if the server
+     * closed the connection without sending one
+     */
+    private static String readBanner(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int lines = 0;
+        while (lines < MAX_BANNER_LINES) {
+            int c = in.read();
+            if (c < 0) {
+                return null;
+            }
+            if (c == '\n') {
+                String text = line.toString().trim();
+                if (text.startsWith("SSH-")) {
+                    return text;
+                }
+                line.setLength(0);
+                lines++;
+            } else if (line.length() < MAX_LINE_LENGTH) {
+                line.append((char) c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sleep before the next try, or give up if that would go past the
+     * deadline.
+     */
+    private void retryAfterBackoff(String reason, IOException cause)
+            throws IOException, InterruptedException {
+        if (System.currentTimeMillis() + backoff > deadline) {
+            IOException e = new IOException(reason + ", giving up");
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            throw e;
+        }
+        logger.println(reason + ", retrying in " + backoff + " ms");
+        Thread.sleep(backoff);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+}
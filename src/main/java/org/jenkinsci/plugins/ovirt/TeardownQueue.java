@@ -0,0 +1,302 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.decorators.VM;
+
+/**
+ * TeardownQueue shuts down the vms of the nodes which disconnected, and
+ * optionally reverts them to their snapshot, in the background, so that the
+ * Jenkins threads disconnecting the nodes don't wait on the ovirt server.
+ *
+ * Teardowns run on a small pool of threads. They don't hold a thread while
+ * waiting for a vm: the VMStateWatcher tells them when to carry on. A
+ * teardown requested for a vm which already has one pending is merged with
+ * it. A failed teardown is retried with an exponential backoff, powering the
+ * vm off instead of shutting it down after the first failure.
+ *
+ * Launchers wait for the pending teardown of their vm before using it, and
+ * skip the revert if it was done by the teardown.
+ */
+public class TeardownQueue {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(TeardownQueue.class.getName());
+
+    /**
+     * How many threads send the teardown requests to the ovirt servers
+     */
+    private static final int THREADS = Integer.getInteger(
+            TeardownQueue.class.getName() + ".threads", 4);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final TeardownQueue INSTANCE = new TeardownQueue();
+
+    private final ScheduledExecutorService executor =
+            Executors.newScheduledThreadPool(Math.max(THREADS, 1),
+                    new NamingThreadFactory(new DaemonThreadFactory(),
+                                            "oVirt teardown"));
+
+    /**
+     * key is "hypervisor description / vm name"
+     */
+    private final Map<String, Teardown> pending =
+            new HashMap<String, Teardown>();
+
+    /**
+     * Snapshot each vm was reverted to by its last teardown, until its next
+     * launch. Same keys as 'pending'
+     */
+    private final Map<String, String> reverted = new HashMap<String, String>();
+
+    /**
+     * @return the TeardownQueue
+     */
+    public static TeardownQueue get() {
+        return INSTANCE;
+    }
+
+    private static String key(String hypervisorDescription, String vmName) {
+        return hypervisorDescription + " / " + vmName;
+    }
+
+    /**
+     * Shut a vm down in the background, then revert it to the snapshot if
+     * one is given. If a teardown of that vm is already pending, it is
+     * reused.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param snapshotName the snapshot to revert to, or null not to revert
+     * @param waitStrategy how to wait on the vm
+     * @return future completed once the teardown is done
+     */
+    public synchronized ListenableFuture<Void> submit(
+            String hypervisorDescription, String vmName, String snapshotName,
+            WaitStrategy waitStrategy) {
+        String key = key(hypervisorDescription, vmName);
+        reverted.remove(key);
+
+        Teardown teardown = pending.get(key);
+        if (teardown != null) {
+            if (snapshotName != null && teardown.snapshotName == null
+                    && !teardown.started) {
+                teardown.snapshotName = snapshotName;
+            }
+            return teardown.done;
+        }
+
+        teardown = new Teardown(hypervisorDescription, vmName, snapshotName,
+                                waitStrategy);
+        pending.put(key, teardown);
+        executor.execute(teardown);
+        return teardown.done;
+    }
+
+    /**
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @return future completed once the pending teardown of the vm is done,
+     * or null if there is none
+     */
+    public synchronized ListenableFuture<Void> getPending(
+            String hypervisorDescription, String vmName) {
+        Teardown teardown = pending.get(key(hypervisorDescription, vmName));
+        return teardown == null ? null : teardown.done;
+    }
+
+    /**
+     * Tell whether the last teardown of the vm reverted it to that snapshot.
+     * This is forgotten once asked, as the vm is then about to be used.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param snapshotName the snapshot the launch would revert to
+     * @return true if the vm does not need to be reverted again
+     */
+    public synchronized boolean takeReverted(String hypervisorDescription,
+                                             String vmName,
+                                             String snapshotName) {
+        String snapshot = reverted.remove(key(hypervisorDescription, vmName));
+        return snapshot != null && snapshot.equals(snapshotName);
+    }
+
+    /**
+     * Drop the pending teardown of a vm, e.g because the vm is being deleted.
+     * A step already running is not interrupted, but no other step is taken.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     */
+    public synchronized void cancel(String hypervisorDescription,
+                                    String vmName) {
+        String key = key(hypervisorDescription, vmName);
+        reverted.remove(key);
+        Teardown teardown = pending.remove(key);
+        if (teardown != null) {
+            teardown.done.cancel(false);
+            LOGGER.log(Level.FINE, "Teardown of " + vmName + " cancelled");
+        }
+    }
+
+    private synchronized void finished(Teardown teardown, boolean reverted) {
+        String key = key(teardown.hypervisorDescription, teardown.vmName);
+        if (pending.get(key) != teardown) {
+            // cancelled meanwhile
+            return;
+        }
+        pending.remove(key);
+        if (reverted) {
+            this.reverted.put(key, teardown.snapshotName);
+        }
+        VMLifecycle.of(teardown.hypervisorDescription, teardown.vmName)
+                   .release();
+    }
+
+    /**
+     * The teardown of one vm. Each run looks at the state of the vm and does
+     * the next step, then asks the state watcher to run it again once the vm
+     * reached the state that step leads to.
+     */
+    private final class Teardown implements Runnable {
+        private final String hypervisorDescription;
+        private final String vmName;
+        private final WaitStrategy waitStrategy;
+        private final SettableFuture<Void> done = SettableFuture.create();
+
+        private String snapshotName;
+        private boolean started = false;
+        private boolean shutdownSent = false;
+        private boolean restoreSent = false;
+        private int attempt = 0;
+
+        private Teardown(String hypervisorDescription, String vmName,
+                         String snapshotName, WaitStrategy waitStrategy) {
+            this.hypervisorDescription = hypervisorDescription;
+            this.vmName = vmName;
+            this.snapshotName = snapshotName;
+            this.waitStrategy = waitStrategy;
+        }
+
+        public void run() {
+            if (done.isCancelled()) {
+                return;
+            }
+            synchronized (TeardownQueue.this) {
+                started = true;
+            }
+            try {
+                step();
+            } catch (Exception e) {
+                retry(e);
+            }
+        }
+
+        private void step() throws Exception {
+            OVirtHypervisor hypervisor = OVirtHypervisor.find(hypervisorDescription);
+            VM vm = hypervisor.getFreshVM(vmName);
+            if (vm == null) {
+                throw new IllegalStateException("VM '" + vmName + "' not found");
+            }
+            String state = vm.getStatus().getState();
+
+            if (state.equalsIgnoreCase("image_locked")) {
+                continueWhen(hypervisor.getStateWatcher().awaitLeaving(vmName,
+                        schedule(WaitStrategy.Transition.UNLOCK),
+                        "image_locked"));
+                return;
+            }
+
+            if (!state.equalsIgnoreCase("down")) {
+                if (!shutdownSent) {
+                    if (attempt == 0) {
+                        hypervisor.shutdownVM(vm.getId());
+                    } else {
+                        // it did not shut down properly last time
+                        hypervisor.stopVM(vm.getId());
+                    }
+                    shutdownSent = true;
+                }
+                continueWhen(hypervisor.getStateWatcher().await(vmName,
+                        schedule(WaitStrategy.Transition.SHUTDOWN), "down"));
+                return;
+            }
+
+            if (snapshotName != null && !restoreSent) {
+                hypervisor.restoreSnapshot(vm.getId(), snapshotName);
+                restoreSent = true;
+                LOGGER.log(Level.INFO, "Reverting " + vmName + " to snapshot '"
+                                       + snapshotName + "'");
+                continueWhen(hypervisor.getStateWatcher().awaitLeaving(vmName,
+                        schedule(WaitStrategy.Transition.UNLOCK),
+                        "image_locked"));
+                return;
+            }
+
+            LOGGER.log(Level.FINE, "Teardown of " + vmName + " done");
+            finished(this, restoreSent);
+            done.set(null);
+        }
+
+        private WaitSchedule schedule(WaitStrategy.Transition transition) {
+            return waitStrategy.newSchedule(hypervisorDescription, vmName,
+                                            transition);
+        }
+
+        /**
+         * Run the next step once the future completes, or retry if it
+         * failed.
+         */
+        private void continueWhen(final ListenableFuture<String> future) {
+            future.addListener(new Runnable() {
+                public void run() {
+                    try {
+                        future.get();
+                        Teardown.this.run();
+                    } catch (ExecutionException e) {
+                        retry(e.getCause());
+                    } catch (InterruptedException e) {
+                        retry(e);
+                    }
+                }
+            }, executor);
+        }
+
+        private void retry(Throwable cause) {
+            if (done.isCancelled()) {
+                return;
+            }
+            attempt++;
+            if (attempt >= MAX_ATTEMPTS) {
+                LOGGER.log(Level.WARNING, "Giving up the teardown of "
+                                          + vmName, cause);
+                finished(this, false);
+                done.setException(cause);
+                return;
+            }
+
+            long delay = Math.min(FIRST_RETRY_MILLIS << (attempt - 1),
+                                  MAX_RETRY_MILLIS);
+            LOGGER.log(Level.INFO, "Teardown of " + vmName + " failed, retrying"
+                    + " in " + delay / 1000 + " seconds", cause);
+            shutdownSent = false;
+            restoreSent = false;
+            executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
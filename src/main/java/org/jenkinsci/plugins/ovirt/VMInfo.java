@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.ovirt;
+
+/**
+ * VMInfo is what the HypervisorClient tells about a vm, independently of
+ * the ovirt sdk.
+ *
+ * @see HypervisorClient
+ */
+public class VMInfo {
+
+    private final String id;
+    private final String name;
+    private final String state;
+    private final String description;
+
+    /**
+     * @param id the ovirt id of the vm
+     * @param name the vm name
+     * @param state the state of the vm, e.g 'up', in lower case
+     * @param description the description of the vm, or null
+     */
+    public VMInfo(String id, String name, String state, String description) {
+        this.id = id;
+        this.name = name;
+        this.state = state;
+        this.description = description;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + state + ")";
+    }
+}
@@ -0,0 +1,293 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.model.Computer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.decorators.VM;
+
+/**
+ * VMInventory is a cache of the vms known to one ovirt server. It keeps the
+ * list of vms returned by the server, indexed by name, href and id, so that
+ * looking up a single vm does not require downloading the whole inventory.
+ *
+ * The inventory is considered valid for 'ttl' milliseconds. Once it gets
+ * close to its expiry, a refresh is started in the background while callers
+ * keep getting the current data (refresh-ahead). When it has really expired,
+ * callers block until the new inventory is loaded. In both cases, only one
+ * refresh is in flight at any given time: concurrent callers share it.
+ */
+public class VMInventory {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(VMInventory.class.getName());
+
+    /**
+     * After this fraction of the ttl has elapsed, a refresh is started in the
+     * background
+     */
+    private static final double REFRESH_AHEAD_RATIO = 0.75;
+
+    /**
+     * Loads the vms from the ovirt server. Implemented by OVirtHypervisor
+     */
+    public interface Loader {
+        List<VM> load() throws Exception;
+    }
+
+    /**
+     * One loaded copy of the inventory, with its indexes
+     */
+    private static final class Entries {
+        private final long loadedAt;
+        private final Map<String, VM> byName = new ConcurrentHashMap<String, VM>();
+        private final Map<String, VM> byHref = new ConcurrentHashMap<String, VM>();
+        private final Map<String, VM> byId = new ConcurrentHashMap<String, VM>();
+        private volatile List<String> sortedNames;
+
+        private Entries(List<VM> vms, long loadedAt) {
+            this.loadedAt = loadedAt;
+            for (VM vm : vms) {
+                index(vm);
+            }
+        }
+
+        private void index(VM vm) {
+            if (vm.getName() != null) {
+                if (!byName.containsKey(vm.getName())) {
+                    sortedNames = null;
+                }
+                byName.put(vm.getName(), vm);
+            }
+            if (vm.getHref() != null) {
+                byHref.put(vm.getHref(), vm);
+            }
+            if (vm.getId() != null) {
+                byId.put(vm.getId(), vm);
+            }
+        }
+
+        private List<String> sortedNames() {
+            List<String> names = sortedNames;
+            if (names == null) {
+                names = new ArrayList<String>(byName.keySet());
+                Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+                names = Collections.unmodifiableList(names);
+                sortedNames = names;
+            }
+            return names;
+        }
+    }
+
+    private final Loader loader;
+    private final long ttlMillis;
+
+    private volatile Entries current;
+    private final AtomicReference<FutureTask<Entries>> inFlight =
+            new AtomicReference<FutureTask<Entries>>();
+
+    /**
+     * @param loader    how to load the vms from the ovirt server
+     * @param ttlSecs   how long a loaded inventory stays valid. 0 means that
+     *                  every lookup will reload the inventory.
+     */
+    public VMInventory(Loader loader, int ttlSecs) {
+        this.loader = loader;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(ttlSecs, 0));
+    }
+
+    /**
+     * Get all the vms in the inventory, reloading it if it has expired.
+     *
+     * @return list of vms
+     * @throws Exception if the inventory could not be loaded
+     */
+    public List<VM> list() throws Exception {
+        return new ArrayList<VM>(entries().byHref.values());
+    }
+
+    /**
+     * @param name vm name
+     * @return the vm with that name, or null if there is no such vm
+     * @throws Exception if the inventory could not be loaded
+     */
+    public VM getByName(String name) throws Exception {
+        return name == null ? null : entries().byName.get(name);
+    }
+
+    /**
+     * @param href vm href
+     * @return the vm with that href, or null if there is no such vm
+     * @throws Exception if the inventory could not be loaded
+     */
+    public VM getByHref(String href) throws Exception {
+        return href == null ? null : entries().byHref.get(href);
+    }
+
+    /**
+     * @param id vm id
+     * @return the vm with that id, or null if there is no such vm
+     * @throws Exception if the inventory could not be loaded
+     */
+    public VM getById(String id) throws Exception {
+        return id == null ? null : entries().byId.get(id);
+    }
+
+    /**
+     * Look up a vm by name only if the inventory is loaded and has not
+     * expired. Unlike getByName, this never triggers a load.
+     *
+     * @param name vm name
+     * @return the vm with that name, or null if not known right now
+     */
+    public VM peekByName(String name) {
+        Entries e = current;
+        if (e == null || name == null
+                || System.currentTimeMillis() - e.loadedAt >= ttlMillis) {
+            return null;
+        }
+        return e.byName.get(name);
+    }
+
+    /**
+     * Get the names of all the vms, sorted, without waiting for a reload:
+     * an expired inventory is served as is while it is refreshed in the
+     * background (stale-while-revalidate). This is meant for the UI, which
+     * should render right away even if the inventory is large or the ovirt
+     * server slow. Only if the inventory is not loaded at all do we wait for
+     * it, at most 'maxWaitMillis'.
+     *
+     * @param maxWaitMillis how long to wait if the inventory is not loaded
+     * @return sorted vm names, empty if the inventory is still loading
+     * @throws Exception if the inventory could not be loaded
+     */
+    public List<String> peekNames(long maxWaitMillis) throws Exception {
+        Entries e = current;
+        if (e == null) {
+            try {
+                e = startRefresh(false).get(maxWaitMillis,
+                                            TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                return Collections.emptyList();
+            } catch (ExecutionException ex) {
+                throw unwrap(ex);
+            }
+        } else if (System.currentTimeMillis() - e.loadedAt
+                       >= ttlMillis * REFRESH_AHEAD_RATIO) {
+            startRefresh(false);
+        }
+        return e.sortedNames();
+    }
+
+    /**
+     * Replace a single vm in the inventory with a newer copy of it, for
+     * example after getting its latest status from the ovirt server.
+     * Does nothing if the inventory was never loaded.
+     *
+     * @param vm the newer vm object
+     */
+    public void put(VM vm) {
+        Entries e = current;
+        if (e != null && vm != null) {
+            e.index(vm);
+        }
+    }
+
+    /**
+     * Forget everything; the next lookup will reload the inventory.
+     */
+    public void invalidate() {
+        current = null;
+    }
+
+    /**
+     * Get the current entries, reloading or refreshing them as required by
+     * the ttl.
+     */
+    private Entries entries() throws Exception {
+        Entries e = current;
+        long age = e == null ? Long.MAX_VALUE
+                             : System.currentTimeMillis() - e.loadedAt;
+
+        if (age >= ttlMillis) {
+            try {
+                return startRefresh(true).get();
+            } catch (ExecutionException ex) {
+                if (e != null) {
+                    // better serve stale data than nothing at all
+                    LOGGER.log(Level.WARNING,
+                            "Could not refresh vm inventory, using stale one",
+                            ex.getCause());
+                    return e;
+                }
+                throw unwrap(ex);
+            }
+        }
+
+        if (age >= ttlMillis * REFRESH_AHEAD_RATIO) {
+            startRefresh(false);
+        }
+        return e;
+    }
+
+    /**
+     * Start a refresh of the inventory, unless one is already in flight, in
+     * which case that one is returned.
+     *
+     * @param inline run the refresh in the calling thread instead of the
+     *               background thread pool
+     * @return the refresh in flight
+     */
+    private Future<Entries> startRefresh(boolean inline) {
+        while (true) {
+            FutureTask<Entries> task = inFlight.get();
+            if (task != null) {
+                return task;
+            }
+
+            FutureTask<Entries> mine = new FutureTask<Entries>(
+                    new Callable<Entries>() {
+                        public Entries call() throws Exception {
+                            try {
+                                long now = System.currentTimeMillis();
+                                Entries loaded = new Entries(loader.load(), now);
+                                current = loaded;
+                                return loaded;
+                            } finally {
+                                inFlight.set(null);
+                            }
+                        }
+                    });
+
+            if (inFlight.compareAndSet(null, mine)) {
+                if (inline) {
+                    mine.run();
+                } else {
+                    Computer.threadPoolForRemoting.submit(mine);
+                }
+                return mine;
+            }
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return e;
+    }
+}
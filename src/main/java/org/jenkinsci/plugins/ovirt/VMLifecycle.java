@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.ovirt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * VMLifecycle tracks where a vm is in its life as a node, from the launch of
+ * the node to the teardown of the vm once the node disconnected:
+ *
+ * DOWN -> REVERTING -> LOCKED -> BOOTING -> IP_WAIT -> SSH -> ONLINE
+ *      -> DRAINING -> DOWN
+ *
+ * DOWN means that no launch is using the vm, whatever its ovirt status.
+ * A launch claims the vm by moving it out of DOWN, so only one launch at a
+ * time can use a vm, while launches of different vms don't wait on each
+ * other. While launching, the vm only moves forward, possibly skipping
+ * states, e.g straight to BOOTING when there is no snapshot to revert to.
+ * A failed launch moves it back to DOWN.
+ *
+ * The transitions are compare-and-set operations, without any lock.
+ */
+public class VMLifecycle {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(VMLifecycle.class.getName());
+
+    public enum State {
+        DOWN, REVERTING, LOCKED, BOOTING, IP_WAIT, SSH, ONLINE, DRAINING;
+
+        private boolean isLaunching() {
+            return compareTo(REVERTING) >= 0 && compareTo(SSH) <= 0;
+        }
+
+        /**
+         * @return true if a vm can go from this state to that one
+         */
+        private boolean canMoveTo(State to) {
+            if (this == DOWN) {
+                return to == REVERTING;
+            }
+            if (isLaunching()) {
+                return to == DOWN || (to.compareTo(this) > 0 && to != DRAINING);
+            }
+            if (this == ONLINE) {
+                return to == DRAINING;
+            }
+            // DRAINING
+            return to == DOWN;
+        }
+    }
+
+    /**
+     * key is "hypervisor description / vm name"
+     */
+    private static final ConcurrentMap<String, VMLifecycle> ALL =
+            new ConcurrentHashMap<String, VMLifecycle>();
+
+    private final String vmName;
+    private final AtomicReference<State> state =
+            new AtomicReference<State>(State.DOWN);
+
+    private VMLifecycle(String vmName) {
+        this.vmName = vmName;
+    }
+
+    /**
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @return the lifecycle of the vm
+     */
+    public static VMLifecycle of(String hypervisorDescription, String vmName) {
+        String key = hypervisorDescription + " / " + vmName;
+        VMLifecycle lifecycle = ALL.get(key);
+        if (lifecycle == null) {
+            VMLifecycle created = new VMLifecycle(vmName);
+            lifecycle = ALL.putIfAbsent(key, created);
+            if (lifecycle == null) {
+                lifecycle = created;
+            }
+        }
+        return lifecycle;
+    }
+
+    /**
+     * Forget a vm which was deleted
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     */
+    public static void forget(String hypervisorDescription, String vmName) {
+        ALL.remove(hypervisorDescription + " / " + vmName);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true if a launch is using the vm, and it is not online yet
+     */
+    public boolean isLaunching() {
+        return state.get().isLaunching();
+    }
+
+    /**
+     * Claim the vm for a launch.
+     *
+     * @throws IllegalStateException the vm is used by another launch, or
+     * its node is still online or draining
+     */
+    public void claim() {
+        if (!state.compareAndSet(State.DOWN, State.REVERTING)) {
+            throw new IllegalStateException("VM '" + vmName + "' is "
+                    + state.get() + ", it can't be launched now");
+        }
+        LOGGER.log(Level.FINE, vmName + ": DOWN -> REVERTING");
+    }
+
+    /**
+     * Move the vm to the next state. Moving to the state the vm is already
+     * in does nothing.
+     *
+     * @param to the new state
+     * @throws IllegalStateException the vm can't go to that state from the
+     * one it is in, e.g because its launch was abandoned meanwhile
+     */
+    public void moveTo(State to) {
+        while (true) {
+            State from = state.get();
+            if (from == to) {
+                return;
+            }
+            if (!from.canMoveTo(to)) {
+                throw new IllegalStateException("VM '" + vmName
+                        + "' can't go from " + from + " to " + to);
+            }
+            if (state.compareAndSet(from, to)) {
+                LOGGER.log(Level.FINE, vmName + ": " + from + " -> " + to);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The launch failed: the vm is no longer used.
+     */
+    public void fail() {
+        State from = state.getAndSet(State.DOWN);
+        LOGGER.log(Level.FINE, vmName + ": " + from + " -> DOWN (failed)");
+    }
+
+    /**
+     * The node disconnected: the vm is being torn down, whatever state its
+     * launch reached.
+     */
+    public void drain() {
+        State from = state.getAndSet(State.DRAINING);
+        LOGGER.log(Level.FINE, vmName + ": " + from + " -> DRAINING");
+    }
+
+    /**
+     * The teardown is done: the vm can be launched again.
+     */
+    public void release() {
+        if (state.compareAndSet(State.DRAINING, State.DOWN)) {
+            LOGGER.log(Level.FINE, vmName + ": DRAINING -> DOWN");
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.jenkinsci.plugins.ovirt;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * VMStateWatcher keeps an eye on the status of the vms that launchers are
+ * waiting on, for one hypervisor.
+ *
+ * Instead of every launcher sleeping and asking the ovirt server for the
+ * status of its own vm, launchers register what they are waiting for and
+ * get a future back. A single thread then asks the ovirt server for the
+ * status of all the vms due for a check, in one request, and completes the
+ * futures of the vms which reached the expected state. When each vm is due
+ * for a check is decided by the WaitSchedule given by its launcher; checks
+ * that are due close to each other are grouped in the same request.
+ *
+ * The thread only runs while somebody is waiting.
+ */
+public class VMStateWatcher {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(VMStateWatcher.class.getName());
+
+    /**
+     * Checks due within that many milliseconds of each other are sent to the
+     * ovirt server together
+     */
+    private static final long COALESCE_MILLIS = 1000;
+
+    /**
+     * What a launcher is waiting for: a vm entering one of 'states', or
+     * leaving them if 'leaving' is true.
+     */
+    private static final class Waiter {
+        private final String vmName;
+        private final Set<String> states;
+        private final boolean leaving;
+        private final WaitSchedule schedule;
+        private final SettableFuture<String> future = SettableFuture.create();
+        private long nextPollAt;
+
+        private Waiter(String vmName, Set<String> states, boolean leaving,
+                       WaitSchedule schedule) {
+            this.vmName = vmName;
+            this.states = states;
+            this.leaving = leaving;
+            this.schedule = schedule;
+            Exception gaveUp = scheduleNextPoll(System.currentTimeMillis());
+            if (gaveUp != null) {
+                future.setException(gaveUp);
+            }
+        }
+
+        /**
+         * @return why the schedule gave up waiting, or null if it goes on.
+         * The future is left for the caller to fail, outside of any lock.
+         */
+        private Exception scheduleNextPoll(long now) {
+            long delay;
+            try {
+                delay = schedule.nextDelayMillis();
+            } catch (RuntimeException e) {
+                return e;
+            }
+            if (delay < 0) {
+                return new TimeoutException("Gave up waiting for "
+                        + "VM '" + vmName + "' (" + (leaving ? "leaving " : "")
+                        + states + ")");
+            }
+            nextPollAt = now + delay;
+            return null;
+        }
+
+        private boolean isSatisfiedBy(String state) {
+            return states.contains(state.toLowerCase()) != leaving;
+        }
+    }
+
+    private final OVirtHypervisor hypervisor;
+    private final List<Waiter> waiters = new LinkedList<Waiter>();
+    private Thread thread;
+
+    public VMStateWatcher(OVirtHypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * Wait for a vm to be in one of the states given, e.g 'up'. The future
+     * completes with the state reached, or fails with a TimeoutException
+     * when the schedule gives up. Cancel it to stop waiting.
+     *
+     * @param vmName the vm name
+     * @param schedule when to check on the vm
+     * @param states the states to wait for
+     * @return future completed when the vm is in one of those states
+     */
+    public ListenableFuture<String> await(String vmName,
+                                          WaitSchedule schedule,
+                                          String... states) {
+        return register(new Waiter(vmName, toSet(states), false, schedule));
+    }
+
+    /**
+     * Wait for a vm to no longer be in any of the states given, e.g
+     * 'image_locked'. The future completes with the new state of the vm, or
+     * fails with a TimeoutException when the schedule gives up. Cancel it to
+     * stop waiting.
+     *
+     * @param vmName the vm name
+     * @param schedule when to check on the vm
+     * @param states the states to wait for the vm to leave
+     * @return future completed when the vm is in none of those states
+     */
+    public ListenableFuture<String> awaitLeaving(String vmName,
+                                                 WaitSchedule schedule,
+                                                 String... states) {
+        return register(new Waiter(vmName, toSet(states), true, schedule));
+    }
+
+    private static Set<String> toSet(String... states) {
+        Set<String> set = new HashSet<String>();
+        for (String state : states) {
+            set.add(state.toLowerCase());
+        }
+        return set;
+    }
+
+    private ListenableFuture<String> register(Waiter waiter) {
+        if (waiter.future.isDone()) {
+            // the schedule gave up right away
+            return waiter.future;
+        }
+        synchronized (waiters) {
+            waiters.add(waiter);
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        pollLoop();
+                    }
+                }, "oVirt state watcher for " + hypervisor.getHypervisorDescription());
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                waiters.notifyAll();
+            }
+        }
+        return waiter.future;
+    }
+
+    /**
+     * Poll the ovirt server until nobody is waiting anymore.
+     */
+    private void pollLoop() {
+        try {
+            while (true) {
+                List<Waiter> due = takeDueWaiters();
+                if (due == null) {
+                    return;
+                }
+                poll(due);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "State watcher interrupted", e);
+            List<Waiter> left;
+            synchronized (waiters) {
+                left = new ArrayList<Waiter>(waiters);
+                waiters.clear();
+                thread = null;
+            }
+            for (Waiter waiter : left) {
+                waiter.future.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Block until some waiters are due for a poll.
+     *
+     * @return the waiters to poll, or null if there are no waiters left, in
+     * which case the polling thread must exit
+     */
+    private List<Waiter> takeDueWaiters() throws InterruptedException {
+        synchronized (waiters) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long nextPollAt = Long.MAX_VALUE;
+                List<Waiter> due = new ArrayList<Waiter>();
+
+                for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                    Waiter waiter = it.next();
+                    if (waiter.future.isDone()) {
+                        // cancelled by the launcher
+                        it.remove();
+                    } else if (waiter.nextPollAt <= now + COALESCE_MILLIS) {
+                        due.add(waiter);
+                    } else {
+                        nextPollAt = Math.min(nextPollAt, waiter.nextPollAt);
+                    }
+                }
+
+                if (!due.isEmpty()) {
+                    return due;
+                }
+                if (waiters.isEmpty()) {
+                    thread = null;
+                    return null;
+                }
+                waiters.wait(nextPollAt - now);
+            }
+        }
+    }
+
+    /**
+     * Ask the ovirt server for the status of all the due vms in one go, and
+     * complete the futures of the satisfied waiters. They are completed once
+     * the lock is released, as their listeners may run right away.
+     */
+    private void poll(List<Waiter> due) throws InterruptedException {
+        Set<String> vmNames = new HashSet<String>();
+        for (Waiter waiter : due) {
+            vmNames.add(waiter.vmName);
+        }
+
+        Map<String, String> states;
+        try {
+            states = hypervisor.getClient().status(vmNames).get();
+        } catch (ExecutionException e) {
+            // try again next time
+            LOGGER.log(Level.WARNING, "Could not get the vm states from "
+                    + hypervisor.getHypervisorDescription(), e.getCause());
+            states = null;
+        } catch (RuntimeException e) {
+            // thrown before the call was made, e.g by the client: try again
+            // next time too, rather than leaving the waiters hanging
+            LOGGER.log(Level.WARNING, "Could not get the vm states from "
+                    + hypervisor.getHypervisorDescription(), e);
+            states = null;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<Waiter, String> reached = new HashMap<Waiter, String>();
+        Map<Waiter, Exception> failed = new HashMap<Waiter, Exception>();
+
+        synchronized (waiters) {
+            for (Waiter waiter : due) {
+                String state = states == null ? null
+                                              : states.get(waiter.vmName);
+                if (states != null && state == null) {
+                    waiters.remove(waiter);
+                    failed.put(waiter, new IllegalStateException(
+                            "VM '" + waiter.vmName + "' not found"));
+                } else if (state != null && waiter.isSatisfiedBy(state)) {
+                    waiters.remove(waiter);
+                    reached.put(waiter, state);
+                } else {
+                    Exception gaveUp = waiter.scheduleNextPoll(now);
+                    if (gaveUp != null) {
+                        waiters.remove(waiter);
+                        failed.put(waiter, gaveUp);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Waiter, String> entry : reached.entrySet()) {
+            entry.getKey().future.set(entry.getValue());
+        }
+        for (Map.Entry<Waiter, Exception> entry : failed.entrySet()) {
+            entry.getKey().future.setException(entry.getValue());
+        }
+    }
+}
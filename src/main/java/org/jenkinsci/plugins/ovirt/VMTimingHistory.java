@@ -0,0 +1,187 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.XmlFile;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * VMTimingHistory remembers how long the last boots and shutdowns of each vm
+ * took, so that LearnedWaitStrategy can check on the vm around the time it
+ * is expected to be ready. It is saved in the Jenkins home directory so that
+ * it survives restarts: in the background, at most every 'saveDelaySecs',
+ * so that a big batch of launches doesn't rewrite the file for every vm.
+ *
+ * @see LearnedWaitStrategy
+ */
+public class VMTimingHistory {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(VMTimingHistory.class.getName());
+
+    /**
+     * How many durations are kept per vm and transition
+     */
+    private static final int MAX_SAMPLES = 20;
+
+    /**
+     * How long the changes wait to be saved, gathering the ones coming next
+     */
+    private static final long SAVE_DELAY_SECS = Long.getLong(
+            VMTimingHistory.class.getName() + ".saveDelaySecs", 30);
+
+    private static final ScheduledExecutorService SAVER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(),
+                                            "oVirt vm timings"));
+
+    private static VMTimingHistory instance;
+
+    /**
+     * key is "hypervisor description / vm name / transition"
+     */
+    private final Map<String, LinkedList<Long>> samples =
+            new HashMap<String, LinkedList<Long>>();
+
+    private transient boolean saveScheduled;
+
+    /**
+     * @return the VMTimingHistory, loaded from disk the first time
+     */
+    public static synchronized VMTimingHistory get() {
+        if (instance == null) {
+            XmlFile file = getConfigFile();
+            try {
+                if (file.exists()) {
+                    instance = (VMTimingHistory) file.read();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not load " + file, e);
+            }
+            if (instance == null) {
+                instance = new VMTimingHistory();
+            }
+        }
+        return instance;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(),
+                                    VMTimingHistory.class.getName() + ".xml"));
+    }
+
+    private static String key(String hypervisorDescription, String vmName,
+                              WaitStrategy.Transition transition) {
+        return hypervisorDescription + " / " + vmName + " / " + transition;
+    }
+
+    /**
+     * Record how long a transition of the vm took.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param transition what happened to the vm
+     * @param millis how long it took
+     */
+    public void record(String hypervisorDescription, String vmName,
+                       WaitStrategy.Transition transition, long millis) {
+        synchronized (this) {
+            String key = key(hypervisorDescription, vmName, transition);
+            LinkedList<Long> durations = samples.get(key);
+            if (durations == null) {
+                durations = new LinkedList<Long>();
+                samples.put(key, durations);
+            }
+            durations.addLast(millis);
+            while (durations.size() > MAX_SAMPLES) {
+                durations.removeFirst();
+            }
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Drop the durations of a vm, e.g once it is deleted.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     */
+    public synchronized void forget(String hypervisorDescription,
+                                    String vmName) {
+        boolean removed = false;
+        for (WaitStrategy.Transition transition
+                : WaitStrategy.Transition.values()) {
+            removed |= samples.remove(key(hypervisorDescription, vmName,
+                                          transition)) != null;
+        }
+        if (removed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm
+     * @param transition what happened to the vm
+     * @return the median duration in milliseconds, or -1 if nothing was
+     * recorded yet
+     */
+    public synchronized long median(String hypervisorDescription,
+                                    String vmName,
+                                    WaitStrategy.Transition transition) {
+        LinkedList<Long> durations =
+                samples.get(key(hypervisorDescription, vmName, transition));
+        if (durations == null || durations.isEmpty()) {
+            return -1;
+        }
+        List<Long> sorted = new ArrayList<Long>(durations);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private synchronized void scheduleSave() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        SAVER.schedule(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write a copy, so that median() isn't held while the file is written.
+     */
+    private void save() {
+        VMTimingHistory copy = new VMTimingHistory();
+        synchronized (this) {
+            saveScheduled = false;
+            for (Map.Entry<String, LinkedList<Long>> entry
+                    : samples.entrySet()) {
+                copy.samples.put(entry.getKey(),
+                                 new LinkedList<Long>(entry.getValue()));
+            }
+        }
+        try {
+            getConfigFile().write(copy);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the vm timings", e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.jenkinsci.plugins.ovirt;
+
+/**
+ * The sequence of delays between two checks of a vm status, while waiting
+ * for it to boot, shutdown, etc. A new one is created by a WaitStrategy for
+ * each wait.
+ *
+ * @see WaitStrategy
+ */
+public interface WaitSchedule {
+
+    /**
+     * @return how many milliseconds to wait before the next check, or a
+     * negative value to give up waiting
+     */
+    long nextDelayMillis();
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.DescriptorExtensionList;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+
+/**
+ * Extension point to decide how long, and how often, OVirtVMLauncher checks
+ * on a vm while waiting for it to boot or shutdown.
+ *
+ * @see FixedWaitStrategy
+ * @see ExponentialBackoffWaitStrategy
+ * @see LearnedWaitStrategy
+ */
+public abstract class WaitStrategy
+                extends AbstractDescribableImpl<WaitStrategy> {
+
+    /**
+     * The vm state changes we wait for
+     */
+    public enum Transition {
+        BOOT, SHUTDOWN, UNLOCK
+    }
+
+    /**
+     * Create the schedule for one wait.
+     *
+     * @param hypervisorDescription the hypervisor of the vm
+     * @param vmName the vm waited on
+     * @param transition what we are waiting for
+     * @return a new WaitSchedule
+     */
+    public abstract WaitSchedule newSchedule(String hypervisorDescription,
+                                             String vmName,
+                                             Transition transition);
+
+    /**
+     * @return all the registered WaitStrategy descriptors
+     */
+    public static DescriptorExtensionList<WaitStrategy, Descriptor<WaitStrategy>> all() {
+        return Jenkins.getInstance().getDescriptorList(WaitStrategy.class);
+    }
+}
@@ -0,0 +1,293 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ovirt.engine.sdk.decorators.VM;
+
+/**
+ * WarmPool keeps, for each template of a hypervisor, some vms already
+ * created and powered on, so that provisioning a node for a label only
+ * has to hand one of them out instead of waiting for a vm to be created
+ * and to boot.
+ *
+ * The pool of a template holds between 'minWarm' and 'maxWarm' vms. It
+ * grows by one, up to 'maxWarm', each time a node is requested while the
+ * pool is empty, and shrinks back to 'minWarm' as vms stay unused for more
+ * than 'warmIdleMinutes'. Vms are created and evicted in the background, by
+ * WarmPoolMaintenance and after each vm handed out.
+ *
+ * @see OVirtTemplate
+ * @see WarmPoolMaintenance
+ */
+public class WarmPool {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(WarmPool.class.getName());
+
+    /**
+     * Description given to the vms created for a pool, so that the ones
+     * left over by a previous Jenkins run can be recognized
+     */
+    static final String VM_DESCRIPTION = "Jenkins warm pool vm";
+
+    /**
+     * A vm of the pool, up and ready to be handed out
+     */
+    private static final class WarmVM {
+        private final String name;
+        private final long readySince = System.currentTimeMillis();
+
+        private WarmVM(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The pool of one template
+     */
+    private static final class Pool {
+        private final LinkedList<WarmVM> ready = new LinkedList<WarmVM>();
+        private final Set<String> warming = new HashSet<String>();
+        private int target;
+
+        private int size() {
+            return ready.size() + warming.size();
+        }
+    }
+
+    private final OVirtHypervisor hypervisor;
+    private final Map<String, Pool> pools = new HashMap<String, Pool>();
+    private final Object cleanupLock = new Object();
+    private volatile boolean leftoversCleaned = false;
+
+    public WarmPool(OVirtHypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    private Pool pool(OVirtTemplate template) {
+        Pool pool = pools.get(template.getTemplateName());
+        if (pool == null) {
+            pool = new Pool();
+            pool.target = template.getMinWarm();
+            pools.put(template.getTemplateName(), pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Hand out a vm of the pool of that template. The pool is refilled in
+     * the background.
+     *
+     * @param template the template the node is created from
+     * @return the name of a vm which is up, or null if the pool is empty
+     */
+    public String take(OVirtTemplate template) {
+        if (template.getMaxWarm() <= 0) {
+            return null;
+        }
+
+        String vmName = null;
+        synchronized (this) {
+            Pool pool = pool(template);
+            if (pool.ready.isEmpty()) {
+                // demand is higher than what we keep warm
+                pool.target = Math.min(pool.target + 1, template.getMaxWarm());
+            } else {
+                vmName = pool.ready.removeFirst().name;
+            }
+        }
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        });
+        return vmName;
+    }
+
+    /**
+     * @param template a template
+     * @return number of vms in the pool of that template, ready or not
+     */
+    public synchronized int size(OVirtTemplate template) {
+        Pool pool = pools.get(template.getTemplateName());
+        return pool == null ? 0 : pool.size();
+    }
+
+    /**
+     * @return number of vms in all the pools, ready or not
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Pool pool : pools.values()) {
+            size += pool.size();
+        }
+        return size;
+    }
+
+    /**
+     * Evict the vms unused for too long, and start warming new vms for the
+     * pools below their target size.
+     */
+    public void maintain() {
+        cleanLeftovers();
+        if (!leftoversCleaned) {
+            return;
+        }
+
+        Set<String> templateNames = new HashSet<String>();
+        for (OVirtTemplate template : hypervisor.getTemplates()) {
+            templateNames.add(template.getTemplateName());
+            evictIdle(template);
+            while (needsMore(template) && hypervisor.reserveInstance(template)) {
+                warm(template);
+            }
+        }
+
+        // pools of templates which were removed
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Pool>> it = pools.entrySet().iterator();
+                 it.hasNext();) {
+                Map.Entry<String, Pool> entry = it.next();
+                if (!templateNames.contains(entry.getKey())) {
+                    for (WarmVM vm : entry.getValue().ready) {
+                        hypervisor.destroyVM(vm.name);
+                    }
+                    entry.getValue().ready.clear();
+                    if (entry.getValue().warming.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized boolean needsMore(OVirtTemplate template) {
+        Pool pool = pool(template);
+        return pool.size() < Math.min(pool.target, template.getMaxWarm());
+    }
+
+    private void evictIdle(OVirtTemplate template) {
+        long idleMillis = TimeUnit.MINUTES.toMillis(template.getWarmIdleMinutes());
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Pool pool = pool(template);
+            Iterator<WarmVM> it = pool.ready.iterator();
+            while (it.hasNext() && pool.size() > template.getMinWarm()) {
+                WarmVM vm = it.next();
+                if (now - vm.readySince > idleMillis) {
+                    it.remove();
+                    pool.target = Math.max(pool.target - 1,
+                                           template.getMinWarm());
+                    LOGGER.log(Level.INFO, "Evicting idle warm vm " + vm.name);
+                    hypervisor.destroyVM(vm.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a new vm for the pool of that template, and power it on, in
+     * the background. It is added to the ready vms once it is up.
+     * A vm must have been reserved with the hypervisor beforehand.
+     */
+    private void warm(final OVirtTemplate template) {
+        final String vmName = template.newVMName();
+        synchronized (this) {
+            pool(template).warming.add(vmName);
+        }
+        hypervisor.releaseInstance(template);
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                boolean up = false;
+                try {
+                    hypervisor.createVMFromTemplate(vmName,
+                            template.getTemplateName(), VM_DESCRIPTION);
+                    VMStateWatcher watcher = hypervisor.getStateWatcher();
+                    watcher.awaitLeaving(vmName, newSchedule(), "image_locked")
+                           .get();
+
+                    VM vm = hypervisor.getVM(vmName);
+                    if (vm == null) {
+                        throw new IllegalStateException("VM '" + vmName
+                                                        + "' not found");
+                    }
+                    hypervisor.startVM(vm.getId());
+                    watcher.await(vmName, newSchedule(), "up").get();
+                    up = true;
+                    LOGGER.log(Level.INFO, "Warm vm " + vmName + " is ready");
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Could not warm vm " + vmName, e);
+                } finally {
+                    synchronized (WarmPool.this) {
+                        Pool pool = pool(template);
+                        pool.warming.remove(vmName);
+                        if (up) {
+                            pool.ready.addLast(new WarmVM(vmName));
+                        }
+                    }
+                    if (!up) {
+                        hypervisor.destroyVM(vmName);
+                    }
+                }
+            }
+        });
+    }
+
+    private static WaitSchedule newSchedule() {
+        return ExponentialBackoffWaitStrategy.schedule(
+                1000, 2000, 30000, 2, TimeUnit.MINUTES.toMillis(20));
+    }
+
+    /**
+     * Delete the pool vms left over by a previous Jenkins run: they were
+     * created with VM_DESCRIPTION, and are not used by any node. This is
+     * done once, before the pool hands out any vm.
+     */
+    private void cleanLeftovers() {
+        // other maintenance runs must wait: they would create new pool vms
+        synchronized (cleanupLock) {
+            if (leftoversCleaned) {
+                return;
+            }
+
+            List<VM> vms = hypervisor.getVMs();
+            if (vms == null) {
+                // try again next time
+                return;
+            }
+
+            Set<String> nodeVMs = new HashSet<String>();
+            for (Node node : Jenkins.getInstance().getNodes()) {
+                if (node instanceof OVirtVMSlave) {
+                    nodeVMs.add(((OVirtVMSlave) node).getVirtualMachineName());
+                }
+            }
+
+            for (VM vm : vms) {
+                if (VM_DESCRIPTION.equals(vm.getDescription())
+                        && !nodeVMs.contains(vm.getName())) {
+                    LOGGER.log(Level.INFO, "Deleting leftover warm vm "
+                                           + vm.getName());
+                    hypervisor.destroyVM(vm.getName());
+                }
+            }
+            leftoversCleaned = true;
+        }
+    }
+}
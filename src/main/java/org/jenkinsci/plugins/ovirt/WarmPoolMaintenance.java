@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.ovirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+
+/**
+ * Every minute, refill the warm pools of all the ovirt hypervisors and
+ * evict their idle vms.
+ *
+ * @see WarmPool
+ */
+@Extension
+public class WarmPoolMaintenance extends AsyncPeriodicWork {
+
+    public WarmPoolMaintenance() {
+        super("oVirt warm pool maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener)
+                                    throws IOException, InterruptedException {
+        for (OVirtHypervisor hypervisor : OVirtHypervisor.getAll().values()) {
+            hypervisor.getWarmPool().maintain();
+        }
+    }
+}